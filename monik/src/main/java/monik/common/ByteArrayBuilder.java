@@ -0,0 +1,85 @@
+package monik.common;
+
+import java.util.Arrays;
+
+// Growable byte array, which is reused to build byte messages without intermediate strings.
+public final class ByteArrayBuilder {
+
+    private byte[] mArray;
+    private int mLength;
+
+    public ByteArrayBuilder(int capacity) {
+        mArray = new byte[capacity];
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        ensureCapacity(length);
+        mLength = length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mArray, mLength);
+    }
+
+    public ByteArrayBuilder append(int b) {
+        ensureCapacity(mLength + 1);
+        mArray[mLength++] = (byte) b;
+        return this;
+    }
+
+    public ByteArrayBuilder append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    public ByteArrayBuilder append(byte[] bytes, int offset, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(bytes, offset, mArray, mLength, length);
+        mLength += length;
+        return this;
+    }
+
+    // Appends chars as UTF-8, unpaired surrogates are replaced with '?' as String.getBytes does.
+    public ByteArrayBuilder append(CharSequence chars) {
+        final int length = chars.length();
+        ensureCapacity(mLength + length);
+        for (int i = 0; i < length; ++i) {
+            final char ch = chars.charAt(i);
+            if (ch < 0x80) {
+                mArray[mLength++] = (byte) ch;
+                continue;
+            }
+            ensureCapacity(mLength + 4 + length - i);
+            if (ch < 0x800) {
+                mArray[mLength++] = (byte) (0xC0 | (ch >> 6));
+                mArray[mLength++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (ch < Character.MIN_SURROGATE || ch > Character.MAX_SURROGATE) {
+                mArray[mLength++] = (byte) (0xE0 | (ch >> 12));
+                mArray[mLength++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                mArray[mLength++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(ch, chars.charAt(++i));
+                mArray[mLength++] = (byte) (0xF0 | (codePoint >> 18));
+                mArray[mLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                mArray[mLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                mArray[mLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                mArray[mLength++] = '?';
+            }
+        }
+        return this;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mArray.length) {
+            mArray = Arrays.copyOf(mArray, Math.max(capacity, mArray.length * 2));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package monik.common;
+
+import java.util.Random;
+
+// Circuit breaker for reconnects. Every failure opens the circuit for the backoff delay, which is doubled
+// by consecutive failures up to the max delay, and is jittered, so many devices do not reconnect in lockstep
+// after an outage. Attempts are rejected at once while the circuit is open. When the delay is expired,
+// the circuit is half open: one attempt is allowed, and its success closes the circuit. Thread safe.
+public final class CircuitBreaker {
+
+    private final long mMinDelay;
+    private final long mMaxDelay;
+    private final long mAttemptTimeout;
+    private final Random mRandom = new Random();
+
+    private int mFailureCount;
+    private long mOpenEndDate;
+    // The date of the attempt, which is allowed in the half open circuit, or 0.
+    private long mAttemptDate;
+
+    // Other attempts are allowed in the half open circuit if the allowed attempt is not finished in the timeout.
+    public CircuitBreaker(long minDelayMilliseconds, long maxDelayMilliseconds, long attemptTimeoutMilliseconds) {
+        if (minDelayMilliseconds <= 0 || maxDelayMilliseconds < minDelayMilliseconds) {
+            throw new IllegalArgumentException("Bad delays: " + minDelayMilliseconds + ", " + maxDelayMilliseconds);
+        }
+        mMinDelay = minDelayMilliseconds;
+        mMaxDelay = maxDelayMilliseconds;
+        mAttemptTimeout = attemptTimeoutMilliseconds;
+    }
+
+    // Returns 0 if the attempt is allowed, or milliseconds, after which it is to be tried again.
+    public synchronized long checkAttempt() {
+        if (mFailureCount == 0) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < mOpenEndDate) {
+            return mOpenEndDate - now;
+        }
+        if (mAttemptDate != 0 && now - mAttemptDate < mAttemptTimeout) {
+            return mAttemptDate + mAttemptTimeout - now;
+        }
+        mAttemptDate = now;
+        return 0;
+    }
+
+    public synchronized void onSuccess() {
+        mFailureCount = 0;
+        mOpenEndDate = 0;
+        mAttemptDate = 0;
+    }
+
+    // Opens the circuit. Returns milliseconds, while it is open.
+    public synchronized long onFailure() {
+        long delay = mMinDelay;
+        for (int i = 0; i < mFailureCount && delay < mMaxDelay; ++i) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, mMaxDelay);
+        ++mFailureCount;
+        // The delay is jittered between its half and itself, so it still grows with failures.
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2 + 1));
+        mOpenEndDate = System.currentTimeMillis() + delay;
+        mAttemptDate = 0;
+        return delay;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+}
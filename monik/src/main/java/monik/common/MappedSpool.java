@@ -0,0 +1,323 @@
+package monik.common;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Durable append only spool of records, which are written to memory mapped segment files, so appending is
+// a copy to the page cache, and the data survives restarts of the process. The total size is bounded:
+// when all segments are used, the oldest segment is recycled and its unread records are dropped.
+// Records are read by the peek cursor, which is kept in memory, and are removed when the read cursor is committed
+// up to them, e.g. when they are confirmed, so records read but not committed are read again after restart.
+// The read cursor is kept in its own mapped file. Record layout: int32 length, int64 mark, data.
+// The length is written last, so a record is visible only when it is complete. Thread safe.
+public final class MappedSpool {
+
+    private static final String LOG_TAG = "MappedSpool";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int CURSOR_SIZE = 16;
+
+    private static final class Segment {
+
+        final long number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writeOffset;
+
+        Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final Logger mLogger;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final MappedByteBuffer mCursor;
+    // The read cursor is in the first segment.
+    private int mReadOffset;
+    // The peek cursor is not before the read cursor. Null segment means the read cursor.
+    private Segment mPeekSegment;
+    private int mPeekOffset;
+    private long mDroppedCount;
+    private boolean mClosed;
+
+    public MappedSpool(File dir, int segmentSize, int maxSegments, Logger logger) throws IOException {
+        mDir = Checks.checkArgNotNull(dir, "dir");
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Too small segment size: " + segmentSize);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("Too few segments: " + maxSegments);
+        }
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mLogger = Checks.checkArgNotNull(logger, "logger");
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create spool directory: " + mDir);
+        }
+        mCursor = map(new File(mDir, CURSOR_FILE_NAME), CURSOR_SIZE);
+        openSegments();
+    }
+
+    // Returns false if the record is too big for a segment or the spool is closed.
+    public synchronized boolean append(long mark, byte[] data) {
+        return append(mark, data, 0, data.length);
+    }
+
+    public synchronized boolean append(long mark, byte[] data, int offset, int length) {
+        final int size = RECORD_HEADER_SIZE + length;
+        if (mClosed || size > mSegmentSize) {
+            return false;
+        }
+        Segment segment = mSegments.peekLast();
+        if (segment == null || mSegmentSize - segment.writeOffset < size) {
+            segment = addSegment();
+        }
+        final MappedByteBuffer buffer = segment.buffer;
+        final int position = segment.writeOffset;
+        buffer.putLong(position + 4, mark);
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(data, offset, length);
+        buffer.putInt(position, length);
+        segment.writeOffset = position + size;
+        return true;
+    }
+
+    // Whether there are no records at the peek cursor.
+    public synchronized boolean isEmpty() {
+        return mClosed || !skipPeekedSegments();
+    }
+
+    // Data of the record at the peek cursor, or null if the spool is empty. The cursor is not moved.
+    public synchronized @Nullable byte[] peek() {
+        if (mClosed || !skipPeekedSegments()) {
+            return null;
+        }
+        final MappedByteBuffer buffer = mPeekSegment.buffer;
+        final byte[] data = new byte[buffer.getInt(mPeekOffset)];
+        buffer.position(mPeekOffset + RECORD_HEADER_SIZE);
+        buffer.get(data);
+        return data;
+    }
+
+    // Mark of the record at the peek cursor. The spool is expected to be not empty.
+    public synchronized long peekMark() {
+        if (mClosed || !skipPeekedSegments()) {
+            throw new IllegalStateException("Spool is empty.");
+        }
+        return mPeekSegment.buffer.getLong(mPeekOffset + 4);
+    }
+
+    // Moves the peek cursor past the record at the peek cursor. Returns the position after the record, which is
+    // to be committed, when the record is not needed any more.
+    public synchronized long skip() {
+        if (mClosed || !skipPeekedSegments()) {
+            throw new IllegalStateException("Spool is empty.");
+        }
+        mPeekOffset += RECORD_HEADER_SIZE + mPeekSegment.buffer.getInt(mPeekOffset);
+        return (mPeekSegment.number << 32) | mPeekOffset;
+    }
+
+    // Moves the read cursor to the position returned by skip, so records before it are removed.
+    // Positions of recycled segments are ignored.
+    public synchronized void commit(long position) {
+        if (mClosed) {
+            return;
+        }
+        final long number = position >>> 32;
+        final int offset = (int) position;
+        while (!mSegments.isEmpty() && mSegments.peekFirst().number < number && mSegments.peekFirst() != mPeekSegment) {
+            removeFirstSegment();
+        }
+        final Segment segment = mSegments.peekFirst();
+        if (segment != null && segment.number == number && offset > mReadOffset) {
+            mReadOffset = offset;
+            writeCursor(segment.number, mReadOffset);
+        }
+    }
+
+    // Count of records, which are dropped as their segments are recycled, since the spool is opened.
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (final Segment segment : mSegments) {
+            segment.buffer.force();
+        }
+        mCursor.force();
+    }
+
+    // Moves the peek cursor from the peeked segments to the next segment. Segments are deleted by commits only.
+    // Returns false if there are no records to peek.
+    private boolean skipPeekedSegments() {
+        if (mPeekSegment == null) {
+            mPeekSegment = mSegments.peekFirst();
+            mPeekOffset = mReadOffset;
+            if (mPeekSegment == null) {
+                return false;
+            }
+        }
+        while (mPeekOffset >= mPeekSegment.writeOffset) {
+            Segment next = null;
+            for (final Iterator<Segment> it = mSegments.descendingIterator(); it.hasNext(); ) {
+                final Segment segment = it.next();
+                if (segment == mPeekSegment) {
+                    break;
+                }
+                next = segment;
+            }
+            if (next == null) {
+                return false;
+            }
+            mPeekSegment = next;
+            mPeekOffset = 0;
+        }
+        return true;
+    }
+
+    private void removeFirstSegment() {
+        final Segment segment = mSegments.pollFirst();
+        mReadOffset = 0;
+        if (mPeekSegment == segment) {
+            mPeekSegment = null;
+        }
+        final Segment next = mSegments.peekFirst();
+        writeCursor(next != null ? next.number : segment.number + 1, 0);
+        if (!segment.file.delete()) {
+            mLogger.w(LOG_TAG, "Failed to delete segment: " + segment.file);
+        }
+    }
+
+    private Segment addSegment() {
+        if (mSegments.size() >= mMaxSegments) {
+            final Segment oldest = mSegments.peekFirst();
+            // Records before the peek cursor are read already, so only records after it are dropped.
+            final boolean peeked = mPeekSegment != null && mPeekSegment != oldest;
+            long dropped = 0;
+            for (int offset = mPeekSegment == oldest ? mPeekOffset : mReadOffset; !peeked && offset < oldest.writeOffset; ++dropped) {
+                offset += RECORD_HEADER_SIZE + oldest.buffer.getInt(offset);
+            }
+            mDroppedCount += dropped;
+            if (dropped > 0) {
+                mLogger.w(LOG_TAG, "Records dropped as spool is full: " + dropped);
+            }
+            removeFirstSegment();
+        }
+        final Segment last = mSegments.peekLast();
+        final long number = last != null ? last.number + 1 : readCursorNumber();
+        final File file = new File(mDir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        final Segment segment;
+        try {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete stale segment: " + file);
+            }
+            segment = new Segment(number, file, map(file, mSegmentSize));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create segment: " + file, e);
+        }
+        mSegments.addLast(segment);
+        return segment;
+    }
+
+    private void openSegments() throws IOException {
+        final long cursorNumber = readCursorNumber();
+        final int cursorOffset = mCursor.getInt(8);
+        final String[] names = mDir.list();
+        final long[] numbers = new long[names != null ? names.length : 0];
+        int count = 0;
+        for (int i = 0; i < numbers.length; ++i) {
+            final String name = names[i];
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                numbers[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                ++count;
+            } catch (NumberFormatException e) {
+                mLogger.w(LOG_TAG, "Unexpected file in spool: " + name);
+            }
+        }
+        Arrays.sort(numbers, 0, count);
+
+        for (int i = 0; i < count; ++i) {
+            final File file = new File(mDir, SEGMENT_PREFIX + numbers[i] + SEGMENT_SUFFIX);
+            // Segments before the cursor are read already, segments of the other size are left by other settings.
+            if (numbers[i] < cursorNumber || file.length() != mSegmentSize || count - i > mMaxSegments) {
+                if (!file.delete()) {
+                    mLogger.w(LOG_TAG, "Failed to delete segment: " + file);
+                }
+                continue;
+            }
+            final Segment segment = new Segment(numbers[i], file, map(file, mSegmentSize));
+            segment.writeOffset = scanRecords(segment.buffer);
+            mSegments.addLast(segment);
+        }
+
+        final Segment first = mSegments.peekFirst();
+        mReadOffset = first != null && first.number == cursorNumber && cursorOffset >= 0 && cursorOffset <= first.writeOffset
+                ? cursorOffset
+                : 0;
+        if (first != null) {
+            writeCursor(first.number, mReadOffset);
+        }
+    }
+
+    // Returns the end of complete records.
+    private int scanRecords(MappedByteBuffer buffer) {
+        int offset = 0;
+        while (mSegmentSize - offset >= RECORD_HEADER_SIZE) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || length > mSegmentSize - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private long readCursorNumber() {
+        final long number = mCursor.getLong(0);
+        return mCursor.getInt(12) == ~mCursor.getInt(8) && number >= 0 ? number : 0;
+    }
+
+    private void writeCursor(long number, int offset) {
+        mCursor.putLong(0, number);
+        mCursor.putInt(8, offset);
+        mCursor.putInt(12, ~offset);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package monik.logs;
+
+import monik.common.Checks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Resume position of logs, which is kept in a memory mapped file, so it is stored by a few memory writes
+// and survives restarts of the process. The position is the timestamp of logs, the skip count, i.e. the sequence
+// of the last log of the timestamp to skip, as several logs may share the timestamp, see LogSequencer, and pid
+// and tid of the last skipped log to check the resume.
+// Positions are written to two slots by turn, and every slot has its own check sum, so the last complete position
+// is still read if the process dies while a slot is written. Slot layout: int64 generation, int64 timestamp,
+// int32 skip count, int32 pid, int32 tid, int32 check sum. Not thread safe: the position is written
+// for every published log, so the checkpoint is used by one thread at a time instead of taking a lock.
+public final class LogCheckpoint {
+
+    public static final long UNKNOWN_ID = -1;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_COUNT = 2;
+
+    private final MappedByteBuffer mBuffer;
+    private long mGeneration;
+    private boolean mValid;
+    private long mTimestamp;
+    private int mSkipCount;
+    private long mPid = UNKNOWN_ID;
+    private long mTid = UNKNOWN_ID;
+
+    public LogCheckpoint(File file) throws IOException {
+        Checks.checkArgNotNull(file, "file");
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() != SLOT_SIZE * SLOT_COUNT) {
+                randomAccessFile.setLength(SLOT_SIZE * SLOT_COUNT);
+            }
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE * SLOT_COUNT);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            randomAccessFile.close();
+        }
+        for (int slot = 0; slot < SLOT_COUNT; ++slot) {
+            readSlot(slot * SLOT_SIZE);
+        }
+    }
+
+    // Whether a position is written to the file.
+    public boolean isValid() {
+        return mValid;
+    }
+
+    // Timestamp of logs in microseconds.
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getSkipCount() {
+        return mSkipCount;
+    }
+
+    public long getPid() {
+        return mPid;
+    }
+
+    public long getTid() {
+        return mTid;
+    }
+
+    // Pid and tid are UNKNOWN_ID if the last skipped log is not known.
+    public void write(long timestamp, int skipCount, long pid, long tid) {
+        if (mValid && timestamp == mTimestamp && skipCount == mSkipCount && pid == mPid && tid == mTid) {
+            return;
+        }
+        ++mGeneration;
+        final int offset = (int) (mGeneration % SLOT_COUNT) * SLOT_SIZE;
+        mBuffer.putLong(offset, mGeneration);
+        mBuffer.putLong(offset + 8, timestamp);
+        mBuffer.putInt(offset + 16, skipCount);
+        mBuffer.putInt(offset + 20, (int) pid);
+        mBuffer.putInt(offset + 24, (int) tid);
+        mBuffer.putInt(offset + 28, checkSum(mGeneration, timestamp, skipCount, (int) pid, (int) tid));
+        mValid = true;
+        mTimestamp = timestamp;
+        mSkipCount = skipCount;
+        mPid = pid;
+        mTid = tid;
+    }
+
+    // Writes the file to the storage, so the position survives restarts of the device too.
+    public void force() {
+        mBuffer.force();
+    }
+
+    private void readSlot(int offset) {
+        final long generation = mBuffer.getLong(offset);
+        final long timestamp = mBuffer.getLong(offset + 8);
+        final int skipCount = mBuffer.getInt(offset + 16);
+        final int pid = mBuffer.getInt(offset + 20);
+        final int tid = mBuffer.getInt(offset + 24);
+        if (generation <= mGeneration
+                || skipCount < 0
+                || mBuffer.getInt(offset + 28) != checkSum(generation, timestamp, skipCount, pid, tid)) {
+            return;
+        }
+        mGeneration = generation;
+        mValid = true;
+        mTimestamp = timestamp;
+        mSkipCount = skipCount;
+        mPid = pid;
+        mTid = tid;
+    }
+
+    private static int checkSum(long generation, long timestamp, int skipCount, int pid, int tid) {
+        long hash = 0x9E3779B97F4A7C15L;
+        hash = (hash ^ generation) * 0x100000001B3L;
+        hash = (hash ^ timestamp) * 0x100000001B3L;
+        hash = (hash ^ skipCount) * 0x100000001B3L;
+        hash = (hash ^ pid) * 0x100000001B3L;
+        hash = (hash ^ tid) * 0x100000001B3L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,243 @@
+package monik.logs;
+
+import monik.common.Checks;
+import monik.common.RetryException;
+
+// Collapses repeated logs: a log with the same tag, severity and text as a log passed within the window
+// is dropped and counted, and the count is passed as a summary log, when the window is over. Logs are
+// fingerprinted by 64-bit hashes in a fixed table, which is probed in a short window like LogTagTable,
+// so memory is bounded, and logs are deduplicated without allocations: only summaries are allocated.
+// Summaries have the tag, severity, pid and tid of the repeated log, the beginning of its text, and the date
+// of the last consumed log, so logs keep their order by dates. Logs, which are retried by the consumer,
+// are not counted. Pending counts are lost on close. Not thread safe: it is used on the consumer thread.
+public final class LogDeduplicator implements LogConsumer {
+
+    private static final int PROBE_LENGTH = 4;
+    // Summaries repeat the beginning of the text, so the repeated log can be found.
+    private static final int TEXT_PREFIX_LENGTH = 80;
+
+    private static final class Slot {
+
+        boolean used;
+        long hash;
+        // Date of the passed log, which starts the window.
+        long date;
+        // Count of dropped repeats.
+        int count;
+        LogTag logTag;
+        String tag;
+        LogSeverity severity;
+        long pid;
+        long tid;
+        final byte[] textPrefix = new byte[TEXT_PREFIX_LENGTH];
+        int textPrefixLength;
+        boolean textTruncated;
+    }
+
+    private final LogConsumer mConsumer;
+    private final long mWindow;
+    private final Slot[] mSlots;
+    private final int mMask;
+    private int mEvictions;
+    // Slots with counts are summarized by a sweep once in a window, if their logs are not repeated any more.
+    private long mNextSweepDate;
+    // Date of the last consumed log, which is the date of summaries.
+    private long mLastDate;
+    private int mLastMicros;
+
+    // The capacity is rounded up to a power of two.
+    public LogDeduplicator(LogConsumer consumer, long windowMilliseconds, int capacity) {
+        mConsumer = Checks.checkArgNotNull(consumer, "consumer");
+        if (windowMilliseconds <= 0) {
+            throw new IllegalArgumentException("Bad window: " + windowMilliseconds);
+        }
+        mWindow = windowMilliseconds;
+        int size = PROBE_LENGTH;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            mSlots[i] = new Slot();
+        }
+        mMask = size - 1;
+    }
+
+    @Override
+    public void consume(LogEntry logEntry) {
+        final long date = logEntry.date.getTime();
+        if (date >= mLastDate) {
+            mLastDate = date;
+            mLastMicros = logEntry.micros;
+        }
+        if (mLastDate >= mNextSweepDate) {
+            sweep(mLastDate);
+        }
+
+        final long hash = hash(logEntry);
+        final int base = (int) (hash ^ (hash >>> 32));
+        Slot slot = null;
+        for (int i = 0; i < PROBE_LENGTH; ++i) {
+            final Slot probe = mSlots[(base + i) & mMask];
+            if (probe.used && probe.hash == hash && isSameTag(probe, logEntry) && probe.severity == logEntry.severity) {
+                slot = probe;
+                break;
+            }
+        }
+        if (slot != null && date >= slot.date && date - slot.date < mWindow) {
+            ++slot.count;
+            slot.pid = logEntry.pid;
+            slot.tid = logEntry.tid;
+            logEntry.release();
+            return;
+        }
+
+        if (slot == null) {
+            slot = findFreeSlot(base);
+        }
+        // The summary is passed before the log, which ends the window. If the consumer retries it,
+        // the log is retried by the producer too, so the summary is passed again.
+        summarize(slot);
+        // The log is recorded before it is consumed, as its text is released by the consumer.
+        record(slot, logEntry, hash, date);
+        try {
+            mConsumer.consume(logEntry);
+        } catch (RetryException e) {
+            slot.used = false;
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        mConsumer.close();
+    }
+
+    // Passes summaries of slots, which windows are over. Called when there are no logs to consume.
+    // Returns milliseconds, after which it is to be called again, or -1 if there are no counts.
+    public long flushExpired() {
+        final long now = Math.max(System.currentTimeMillis(), mLastDate);
+        sweep(now);
+        long timeout = -1;
+        for (final Slot slot : mSlots) {
+            if (slot.count > 0) {
+                final long slotTimeout = Math.max(0, slot.date + mWindow - now);
+                timeout = timeout < 0 ? slotTimeout : Math.min(timeout, slotTimeout);
+            }
+        }
+        return timeout;
+    }
+
+    private void sweep(long now) {
+        for (final Slot slot : mSlots) {
+            if (slot.count > 0 && (now - slot.date >= mWindow || now < slot.date)) {
+                summarize(slot);
+            }
+        }
+        mNextSweepDate = now + mWindow;
+    }
+
+    // Probe slots, which are not used, or the slot of the oldest log is evicted.
+    private Slot findFreeSlot(int base) {
+        Slot oldest = null;
+        for (int i = 0; i < PROBE_LENGTH; ++i) {
+            final Slot probe = mSlots[(base + i) & mMask];
+            if (!probe.used) {
+                return probe;
+            }
+            if (oldest == null || probe.date < oldest.date) {
+                oldest = probe;
+            }
+        }
+        // Slots of the probe window are evicted in turn if their logs are of the same date.
+        final Slot next = mSlots[(base + (mEvictions++ & (PROBE_LENGTH - 1))) & mMask];
+        return next.date == oldest.date ? next : oldest;
+    }
+
+    // The count is cleared only when the summary is consumed, so it is not lost if the consumer retries.
+    private void summarize(Slot slot) {
+        if (slot.count == 0) {
+            return;
+        }
+        final LogEntry summary = new LogEntry();
+        summary.reset(mLastDate);
+        summary.micros = mLastMicros;
+        summary.pid = slot.pid;
+        summary.tid = slot.tid;
+        summary.severity = slot.severity;
+        summary.logTag = slot.logTag;
+        summary.tag = slot.tag;
+        summary.text = makeSummaryText(slot);
+        mConsumer.consume(summary);
+        slot.count = 0;
+    }
+
+    private static String makeSummaryText(Slot slot) {
+        final StringBuilder text = new StringBuilder();
+        text.append("Repeated ").append(slot.count).append(" times: ");
+        text.append(new String(slot.textPrefix, 0, slot.textPrefixLength, LogUtils.UTF8));
+        if (slot.textTruncated) {
+            text.append("...");
+        }
+        return text.toString();
+    }
+
+    private static void record(Slot slot, LogEntry logEntry, long hash, long date) {
+        slot.used = true;
+        slot.hash = hash;
+        slot.date = date;
+        slot.count = 0;
+        slot.logTag = logEntry.logTag;
+        slot.tag = logEntry.logTag == null ? logEntry.tag : null;
+        slot.severity = logEntry.severity;
+        slot.pid = logEntry.pid;
+        slot.tid = logEntry.tid;
+        if (logEntry.bytes != null) {
+            int length = Math.min(logEntry.textLength, TEXT_PREFIX_LENGTH);
+            if (length < logEntry.textLength) {
+                // The prefix is not cut in the middle of a UTF-8 sequence.
+                while (length > 0 && (logEntry.bytes[logEntry.textOffset + length] & 0xC0) == 0x80) {
+                    --length;
+                }
+            }
+            System.arraycopy(logEntry.bytes, logEntry.textOffset, slot.textPrefix, 0, length);
+            slot.textPrefixLength = length;
+            slot.textTruncated = length < logEntry.textLength;
+        } else {
+            // Texts of logs, which are not read as bytes, are rare, so they are encoded.
+            final byte[] text = String.valueOf(logEntry.text).getBytes(LogUtils.UTF8);
+            int length = Math.min(text.length, TEXT_PREFIX_LENGTH);
+            while (length > 0 && length < text.length && (text[length] & 0xC0) == 0x80) {
+                --length;
+            }
+            System.arraycopy(text, 0, slot.textPrefix, 0, length);
+            slot.textPrefixLength = length;
+            slot.textTruncated = length < text.length;
+        }
+    }
+
+    private static boolean isSameTag(Slot slot, LogEntry logEntry) {
+        return LogTag.isSame(slot.logTag, slot.tag, logEntry.logTag, logEntry.tag);
+    }
+
+    // 64-bit FNV-1a hash of the tag, severity and text. Tags are hashed by names, so interned and not interned
+    // tags are equal. Texts, which are not read as bytes, are hashed by chars.
+    // Logs read as bytes are hashed by bytes, even if their texts are got already, so they are equal to repeats.
+    private static long hash(LogEntry logEntry) {
+        long hash = 0xCBF29CE484222325L;
+        hash = (hash ^ LogTag.hashOf(logEntry.logTag, logEntry.tag)) * 0x100000001B3L;
+        hash = (hash ^ (logEntry.severity != null ? logEntry.severity.ordinal() : -1)) * 0x100000001B3L;
+        if (logEntry.bytes != null) {
+            final byte[] bytes = logEntry.bytes;
+            for (int i = logEntry.textOffset, end = logEntry.textOffset + logEntry.textLength; i < end; ++i) {
+                hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001B3L;
+            }
+        } else if (logEntry.text != null) {
+            final String text = logEntry.text;
+            for (int i = 0, length = text.length(); i < length; ++i) {
+                hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+}
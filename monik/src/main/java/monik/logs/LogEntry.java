@@ -15,6 +15,8 @@ public final class LogEntry implements Parcelable {
         private static final String SEVERITY  = "severity";
         private static final String TAG       = "tag";
         private static final String TEXT      = "text";
+        private static final String BUFFER    = "buffer";
+        private static final String MICROS    = "micros";
     }
 
     public Date date;
@@ -23,6 +25,21 @@ public final class LogEntry implements Parcelable {
     public LogSeverity severity;
     public String tag;
     public String text;
+    public String buffer;
+    // Microseconds within the millisecond of the date, if logcat provides them.
+    public int micros;
+    // Position of the log among logs of its timestamp: index of its buffer and number in the buffer, see
+    // LogSequencer, or 0 if the log is not read from a buffer, e.g. it is a summary of other logs.
+    public int sequence;
+
+    // Interned tag and UTF-8 text of the log which is read as bytes: tag and text strings are got on demand only.
+    // The text bytes are valid until the log is released.
+    public LogTag logTag;
+    public byte[] bytes;
+    public int textOffset;
+    public int textLength;
+    private Utf8Ring mRing;
+    private int mRingOffset;
 
     public LogEntry() {
     }
@@ -34,6 +51,8 @@ public final class LogEntry implements Parcelable {
         severity = LogUtils.readSeverity(BundleKeys.SEVERITY, bundle);
         tag = bundle.getString(BundleKeys.TAG, tag);
         text = bundle.getString(BundleKeys.TEXT, text);
+        buffer = bundle.getString(BundleKeys.BUFFER, buffer);
+        micros = bundle.getInt(BundleKeys.MICROS, micros);
     }
 
     public LogEntry(Parcel in) {
@@ -43,6 +62,8 @@ public final class LogEntry implements Parcelable {
         severity = LogUtils.readSeverity(in);
         tag = in.readString();
         text = in.readString();
+        buffer = in.readString();
+        micros = in.readInt();
     }
 
     public Bundle toBundle() {
@@ -51,8 +72,10 @@ public final class LogEntry implements Parcelable {
         bundle.putLong(BundleKeys.PID, pid);
         bundle.putLong(BundleKeys.TID, tid);
         LogUtils.writeSeverity(BundleKeys.SEVERITY, bundle, severity);
-        bundle.putString(BundleKeys.TAG, tag);
-        bundle.putString(BundleKeys.TEXT, text);
+        bundle.putString(BundleKeys.TAG, getTag());
+        bundle.putString(BundleKeys.TEXT, getText());
+        bundle.putString(BundleKeys.BUFFER, buffer);
+        bundle.putInt(BundleKeys.MICROS, micros);
         return bundle;
     }
 
@@ -62,8 +85,99 @@ public final class LogEntry implements Parcelable {
         out.writeLong(pid);
         out.writeLong(tid);
         LogUtils.writeSeverity(out, severity);
-        out.writeString(tag);
-        out.writeString(text);
+        out.writeString(getTag());
+        out.writeString(getText());
+        out.writeString(buffer);
+        out.writeInt(micros);
+    }
+
+    public String getTag() {
+        if (tag == null && logTag != null) {
+            tag = logTag.name;
+        }
+        return tag;
+    }
+
+    public String getText() {
+        if (text == null && bytes != null) {
+            text = new String(bytes, textOffset, textLength, LogUtils.UTF8);
+        }
+        return text;
+    }
+
+    public boolean textStartsWith(byte[] utf8Prefix) {
+        if (text == null && bytes != null) {
+            return textLength >= utf8Prefix.length && regionMatches(bytes, textOffset, utf8Prefix);
+        }
+        return text != null && text.startsWith(new String(utf8Prefix, LogUtils.UTF8));
+    }
+
+    public boolean textContains(byte[] utf8Substring) {
+        if (text == null && bytes != null) {
+            for (int i = textOffset, end = textOffset + textLength - utf8Substring.length; i <= end; ++i) {
+                if (regionMatches(bytes, i, utf8Substring)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return text != null && text.contains(new String(utf8Substring, LogUtils.UTF8));
+    }
+
+    // Resets the log to be reused for another log: only logs, which are not passed to consumers, can be reused.
+    public void reset(long date) {
+        release();
+        if (this.date == null) {
+            this.date = new Date(date);
+        } else {
+            this.date.setTime(date);
+        }
+        pid = 0;
+        tid = 0;
+        severity = null;
+        tag = null;
+        text = null;
+        buffer = null;
+        micros = 0;
+        sequence = 0;
+        logTag = null;
+        bytes = null;
+        textOffset = 0;
+        textLength = 0;
+    }
+
+    // Copies UTF-8 text to the ring slice, or to its own array if the ring is full.
+    public void setTextBytes(Utf8Ring ring, byte[] source, int begin, int end) {
+        textLength = end - begin;
+        textOffset = ring.allocate(textLength);
+        if (textOffset >= 0) {
+            bytes = ring.array();
+            mRing = ring;
+            mRingOffset = textOffset;
+        } else {
+            bytes = new byte[textLength];
+            textOffset = 0;
+        }
+        System.arraycopy(source, begin, bytes, textOffset, textLength);
+        text = null;
+    }
+
+    // Must be invoked by the last consumer of the log, so the ring slice can be reused.
+    public void release() {
+        if (mRing != null) {
+            mRing.release(mRingOffset);
+            mRing = null;
+            bytes = null;
+        }
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] region) {
+        for (int i = 0; i < region.length; ++i) {
+            if (bytes[offset + i] != region[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
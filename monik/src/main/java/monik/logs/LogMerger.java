@@ -0,0 +1,224 @@
+package monik.logs;
+
+import android.util.Log;
+
+import monik.common.Checks;
+import monik.common.Logger;
+import monik.common.RetryException;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// Merges logs of several inputs into one consumer in date order. Logs of the same timestamp are ordered by their
+// sequences, so the merged order does not depend on arrival times, see LogSequencer.
+// Every log is held for the reordering window after its arrival, so a log which is a bit late is still placed
+// before the later logs of other inputs, while a quiet input never delays logs of others for longer than the window.
+// Every input has its own capacity, so only a noisy input is blocked when the consumer is behind.
+public final class LogMerger {
+
+    private static final String LOG_TAG = "LogMerger";
+
+    private static final class Node {
+        LogEntry logEntry;
+        long date;
+        int micros;
+        int logSequence;
+        long sequence;
+        long arrivalTime;
+        Input input;
+    }
+
+    private final class Input implements LogConsumer {
+
+        int count;
+
+        @Override
+        public void consume(LogEntry logEntry) {
+            push(this, logEntry);
+        }
+
+        @Override
+        public void close() {
+            // The merged consumer is closed by the merger.
+        }
+    }
+
+    private static final Comparator<Node> NODE_COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            if (lhs.date != rhs.date) {
+                return lhs.date < rhs.date ? -1 : 1;
+            }
+            if (lhs.micros != rhs.micros) {
+                return lhs.micros < rhs.micros ? -1 : 1;
+            }
+            if (lhs.logSequence != rhs.logSequence) {
+                return lhs.logSequence < rhs.logSequence ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final Object mSync = new Object();
+    private final LogConsumer mConsumer;
+    private final long mWindowMilliseconds;
+    private final int mInputCapacity;
+    private final Logger mLogger;
+    private final PriorityQueue<Node> mQueue = new PriorityQueue<>(64, NODE_COMPARATOR);
+    private final ArrayDeque<Node> mFreeNodes = new ArrayDeque<>();
+    private long mSequence;
+    private boolean mClosed;
+    private Thread mThread;
+
+    public LogMerger(LogConsumer consumer, long windowMilliseconds, int inputCapacity, Logger logger) {
+        mConsumer = Checks.checkArgNotNull(consumer, "consumer");
+        mWindowMilliseconds = windowMilliseconds;
+        mInputCapacity = inputCapacity;
+        mLogger = Checks.checkArgNotNull(logger, "logger");
+    }
+
+    public LogConsumer newInput() {
+        return new Input();
+    }
+
+    public void start() {
+        synchronized (mSync) {
+            if (mClosed) {
+                throw new IllegalStateException("Close has already already requested.");
+            }
+            if (mThread != null) {
+                throw new IllegalStateException("Multiple start is not supported.");
+            }
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    threadFunc();
+                }
+            });
+            mThread.start();
+        }
+    }
+
+    public void close() {
+        Thread thread = null;
+        int dropped = 0;
+        synchronized (mSync) {
+            mClosed = true;
+            thread = mThread;
+            dropped = mQueue.size();
+            for (final Node node : mQueue) {
+                node.logEntry.release();
+            }
+            mQueue.clear();
+            mSync.notifyAll();
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+
+        if (dropped > 0) {
+            mLogger.w(LOG_TAG, "Logs dropped on close: " + dropped);
+        }
+        mConsumer.close();
+    }
+
+    private void push(Input input, LogEntry logEntry) {
+        synchronized (mSync) {
+            try {
+                while (!mClosed && input.count >= mInputCapacity) {
+                    mSync.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (mClosed) {
+                return;
+            }
+            final Node node = mFreeNodes.isEmpty() ? new Node() : mFreeNodes.poll();
+            node.logEntry = logEntry;
+            node.date = logEntry.date.getTime();
+            node.micros = logEntry.micros;
+            node.logSequence = logEntry.sequence;
+            node.sequence = mSequence++;
+            node.arrivalTime = System.currentTimeMillis();
+            node.input = input;
+            ++input.count;
+            mQueue.add(node);
+            if (mQueue.peek() == node) {
+                mSync.notifyAll();
+            }
+        }
+    }
+
+    private void threadFunc() {
+        try {
+            while (true) {
+                Node node = null;
+                synchronized (mSync) {
+                    while (!mClosed) {
+                        final Node head = mQueue.peek();
+                        if (head == null) {
+                            mSync.wait();
+                            continue;
+                        }
+                        final long remaining = head.arrivalTime + mWindowMilliseconds - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            node = mQueue.poll();
+                            break;
+                        }
+                        mSync.wait(remaining);
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                }
+
+                output(node.logEntry);
+
+                synchronized (mSync) {
+                    --node.input.count;
+                    node.logEntry = null;
+                    node.input = null;
+                    mFreeNodes.add(node);
+                    mSync.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    private void output(LogEntry logEntry) throws InterruptedException {
+        while (true) {
+            try {
+                mConsumer.consume(logEntry);
+                return;
+            } catch (RetryException e) {
+                final long timeout = e.getMinTimeoutMilliseconds();
+                mLogger.e(LOG_TAG, "RetryException [" + timeout + " ms]: " + Log.getStackTraceString(e));
+                final long endTime = System.currentTimeMillis() + timeout;
+                synchronized (mSync) {
+                    long remaining = timeout;
+                    while (!mClosed && remaining > 0) {
+                        mSync.wait(remaining);
+                        remaining = endTime - System.currentTimeMillis();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                mLogger.e(LOG_TAG, "Exception: " + Log.getStackTraceString(e));
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package monik.logs;
+
+import android.util.Log;
+
+import monik.common.Checks;
+import monik.common.Logger;
+import monik.common.RetryException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded queue, which hands logs of the single producer thread over to the consumer on its own thread,
+// so the producer keeps reading logs while the consumer is slow or waits to retry.
+// The queue is lock free: the producer moves the tail, both move the head by compare and set, as the producer
+// drops the oldest logs by some overflow policies, and either of them is parked only when the queue is full
+// or empty respectively. Slots are not cleared: they are overwritten by the producer.
+public final class LogQueue implements LogConsumer {
+
+    private static final String LOG_TAG = "LogQueue";
+    private static final long DROP_REPORT_INTERVAL_MILLISECONDS = 10000;
+
+    public enum OverflowPolicy {
+
+        // Blocks the producer until the consumer takes a log.
+        Block,
+
+        // Drops the new log.
+        DropNewest,
+
+        // Drops the oldest queued log to make room for the new one.
+        DropOldest,
+
+        // Drops new logs of low severities as the queue fills up: verbose and debug logs at a half,
+        // info logs at three quarters, warnings at seven eighths. When the queue is full, errors and more severe
+        // logs drop the oldest queued log, while others are dropped.
+        ShedLowSeverity
+    }
+
+    public interface IdleListener {
+        // Called on the consumer thread when there are no logs to consume.
+        // Returns milliseconds, after which it is to be called again if there are still no logs, or -1.
+        long onIdle();
+    }
+
+    private final LogConsumer mConsumer;
+    private final OverflowPolicy mPolicy;
+    private final Logger mLogger;
+    private final LogEntry[] mEntries;
+    private final int mMask;
+
+    // The next position to write, moved by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+    // The next position to read, moved by the consumer, or by the producer which drops the oldest log.
+    private final AtomicLong mHead = new AtomicLong();
+
+    // Logs dropped by the overflow policy per severity.
+    private final AtomicLongArray mDroppedCounts = new AtomicLongArray(LogSeverity.values().length);
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private long mReportedDroppedCount;
+    private long mReportDate;
+
+    private final Object mSync = new Object();
+    private volatile boolean mClosed;
+    private volatile Thread mThread;
+    private volatile Thread mParkedProducer;
+    private volatile boolean mConsumerParked;
+    private IdleListener mIdleListener;
+
+    // The capacity is rounded up to a power of two.
+    public LogQueue(LogConsumer consumer, int capacity, OverflowPolicy policy, Logger logger) {
+        mConsumer = Checks.checkArgNotNull(consumer, "consumer");
+        mPolicy = Checks.checkArgNotNull(policy, "policy");
+        mLogger = Checks.checkArgNotNull(logger, "logger");
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mEntries = new LogEntry[size];
+        mMask = mEntries.length - 1;
+    }
+
+    public void start() {
+        synchronized (mSync) {
+            if (mClosed) {
+                throw new IllegalStateException("Close has already already requested.");
+            }
+            if (mThread != null) {
+                throw new IllegalStateException("Multiple start is not supported.");
+            }
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    threadFunc();
+                }
+            });
+            mThread.start();
+        }
+    }
+
+    // Sets the listener before start.
+    public void setIdleListener(IdleListener listener) {
+        synchronized (mSync) {
+            if (mThread != null) {
+                throw new IllegalStateException("Already started.");
+            }
+            mIdleListener = listener;
+        }
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    // Count of logs of the severity, which are dropped by the overflow policy.
+    public long getDroppedCount(LogSeverity severity) {
+        return mDroppedCounts.get(severity.ordinal());
+    }
+
+    // Count of all logs, which are dropped by the overflow policy.
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public void consume(LogEntry logEntry) {
+        if (mClosed) {
+            logEntry.release();
+            return;
+        }
+        final long tail = mTail.get();
+        if (mPolicy == OverflowPolicy.ShedLowSeverity
+                && getSeverity(logEntry).ordinal() < getShedSeverity(tail - mHead.get()).ordinal()) {
+            drop(logEntry);
+            return;
+        }
+        while (tail - mHead.get() >= mEntries.length) {
+            switch (mPolicy) {
+                case Block:
+                    if (!waitForRoom(tail)) {
+                        logEntry.release();
+                        return;
+                    }
+                    break;
+
+                case DropNewest:
+                    drop(logEntry);
+                    return;
+
+                case DropOldest:
+                    dropOldest();
+                    break;
+
+                case ShedLowSeverity:
+                    if (getSeverity(logEntry).ordinal() < LogSeverity.Error.ordinal()) {
+                        drop(logEntry);
+                        return;
+                    }
+                    dropOldest();
+                    break;
+            }
+        }
+        mEntries[(int) tail & mMask] = logEntry;
+        mTail.set(tail + 1);
+        if (mConsumerParked) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread thread = null;
+        synchronized (mSync) {
+            mClosed = true;
+            thread = mThread;
+        }
+
+        final Thread producer = mParkedProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+
+        int dropped = 0;
+        while (true) {
+            final long head = mHead.get();
+            if (head >= mTail.get()) {
+                break;
+            }
+            final LogEntry logEntry = mEntries[(int) head & mMask];
+            if (mHead.compareAndSet(head, head + 1)) {
+                logEntry.release();
+                ++dropped;
+            }
+        }
+
+        if (dropped > 0) {
+            mLogger.w(LOG_TAG, "Logs dropped on close: " + dropped);
+        }
+        mConsumer.close();
+    }
+
+    private void threadFunc() {
+        while (!mClosed) {
+            final long head = mHead.get();
+            if (head == mTail.get()) {
+                reportDropped(true);
+                final long timeout = notifyIdle();
+                mConsumerParked = true;
+                if (head == mTail.get() && !mClosed) {
+                    if (timeout >= 0) {
+                        LockSupport.parkNanos(this, Math.max(timeout, 1) * 1000000);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                mConsumerParked = false;
+                continue;
+            }
+
+            final LogEntry logEntry = mEntries[(int) head & mMask];
+            if (!mHead.compareAndSet(head, head + 1)) {
+                // The log is dropped by the producer.
+                continue;
+            }
+
+            final Thread producer = mParkedProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+
+            if (!output(logEntry)) {
+                // Closed while the log is retried.
+                logEntry.release();
+                return;
+            }
+            reportDropped(false);
+        }
+    }
+
+    private long notifyIdle() {
+        if (mIdleListener == null) {
+            return -1;
+        }
+        try {
+            return mIdleListener.onIdle();
+        } catch (Exception e) {
+            mLogger.e(LOG_TAG, "Exception: " + Log.getStackTraceString(e));
+            return -1;
+        }
+    }
+
+    // Returns false if the wait is interrupted or the queue is closed.
+    private boolean waitForRoom(long tail) {
+        if (mClosed) {
+            return false;
+        }
+        mParkedProducer = Thread.currentThread();
+        if (tail - mHead.get() >= mEntries.length && !mClosed) {
+            LockSupport.park(this);
+        }
+        mParkedProducer = null;
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    private void dropOldest() {
+        final long head = mHead.get();
+        final LogEntry logEntry = mEntries[(int) head & mMask];
+        if (mHead.compareAndSet(head, head + 1)) {
+            drop(logEntry);
+        }
+    }
+
+    private void drop(LogEntry logEntry) {
+        mDroppedCounts.incrementAndGet(getSeverity(logEntry).ordinal());
+        mDroppedCount.incrementAndGet();
+        logEntry.release();
+    }
+
+    // Severity of new logs, which are not dropped at the queue size.
+    private LogSeverity getShedSeverity(long size) {
+        final int capacity = mEntries.length;
+        if (size >= capacity - capacity / 8) {
+            return LogSeverity.Error;
+        }
+        if (size >= capacity - capacity / 4) {
+            return LogSeverity.Warning;
+        }
+        if (size >= capacity / 2) {
+            return LogSeverity.Info;
+        }
+        return LogSeverity.Verbose;
+    }
+
+    private static LogSeverity getSeverity(LogEntry logEntry) {
+        return logEntry.severity != null ? logEntry.severity : LogSeverity.Verbose;
+    }
+
+    // Reports dropped logs when the queue is drained, or once in a while if it is never drained.
+    private void reportDropped(boolean drained) {
+        final long droppedCount = mDroppedCount.get();
+        if (droppedCount == mReportedDroppedCount) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (!drained && now - mReportDate < DROP_REPORT_INTERVAL_MILLISECONDS) {
+            return;
+        }
+        mReportDate = now;
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Logs dropped by overflow policy ");
+        sb.append(mPolicy);
+        sb.append(": ");
+        sb.append(droppedCount - mReportedDroppedCount);
+        sb.append(", total:");
+        for (final LogSeverity severity : LogSeverity.values()) {
+            sb.append(" ");
+            sb.append(severity.name());
+            sb.append("=");
+            sb.append(getDroppedCount(severity));
+        }
+        mReportedDroppedCount = droppedCount;
+        mLogger.w(LOG_TAG, sb.toString());
+    }
+
+    // Returns false if the queue is closed before the log is consumed.
+    private boolean output(LogEntry logEntry) {
+        while (true) {
+            try {
+                mConsumer.consume(logEntry);
+                return true;
+            } catch (RetryException e) {
+                final long timeout = e.getMinTimeoutMilliseconds();
+                mLogger.e(LOG_TAG, "RetryException [" + timeout + " ms]: " + Log.getStackTraceString(e));
+                try {
+                    Thread.sleep(timeout);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+                if (mClosed) {
+                    return false;
+                }
+            } catch (Exception e) {
+                mLogger.e(LOG_TAG, "Exception: " + Log.getStackTraceString(e));
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package monik.logs;
+
+import android.support.annotation.Nullable;
+
+import monik.common.Checks;
+
+// Limits rates of logs by token buckets per tag and per pid, with separate budgets per severity, so a chatty
+// tag or process does not take the budget of others. A log is passed if both buckets of its tag and pid have
+// a token; otherwise it is released and counted. When the limit lifts, the count is passed as a summary log
+// before the next passed log of the bucket, or when the queue is idle. Limits are logs per minute by severities,
+// and buckets hold a minute of logs, so bursts up to the limit are passed at once. Time is taken from dates
+// of logs. Buckets are kept in tables of primitive arrays, which are probed in a short window like LogTagTable,
+// so memory is bounded and logs are checked without allocations. Logs, which are retried by the consumer, take
+// no tokens. Pending counts are lost on close. Not thread safe: it is used on the consumer thread.
+public final class LogRateLimiter implements LogConsumer {
+
+    private static final int PROBE_LENGTH = 4;
+    private static final int SEVERITY_COUNT = LogSeverity.values().length;
+    // Tokens are counted in units, so a bucket is refilled by one unit per millisecond for every log
+    // of the limit per minute.
+    private static final long TOKEN_UNITS = 60 * 1000;
+
+    // Buckets by keys and severities: the bucket of the slot and the severity is at slot * SEVERITY_COUNT + severity.
+    private static final class BucketTable {
+
+        final boolean[] used;
+        final long[] keys;
+        // Tags of the slots, as keys of tags are their hashes: the interned tag, or the tag of logs,
+        // which are not interned. Null in the table of pids.
+        final LogTag[] keyLogTags;
+        final String[] keyTags;
+        // Date of the last access to the slot, to evict the slot of the oldest key.
+        final long[] accessDates;
+        final long[] tokens;
+        final long[] refillDates;
+        final int[] suppressedCounts;
+        // Tag, pid and tid of the last suppressed log of the bucket, for its summary.
+        final LogTag[] logTags;
+        final String[] tags;
+        final long[] pids;
+        final long[] tids;
+        final int mask;
+        int evictions;
+
+        BucketTable(int capacity) {
+            int size = PROBE_LENGTH;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            used = new boolean[size];
+            keys = new long[size];
+            keyLogTags = new LogTag[size];
+            keyTags = new String[size];
+            accessDates = new long[size];
+            tokens = new long[size * SEVERITY_COUNT];
+            refillDates = new long[size * SEVERITY_COUNT];
+            suppressedCounts = new int[size * SEVERITY_COUNT];
+            logTags = new LogTag[size * SEVERITY_COUNT];
+            tags = new String[size * SEVERITY_COUNT];
+            pids = new long[size * SEVERITY_COUNT];
+            tids = new long[size * SEVERITY_COUNT];
+            mask = size - 1;
+        }
+    }
+
+    private final LogConsumer mConsumer;
+    private final int[] mTagLimits;
+    private final int[] mPidLimits;
+    private final BucketTable mTagBuckets;
+    private final BucketTable mPidBuckets;
+    // Date of the last consumed log, which is the date of summaries.
+    private long mLastDate;
+    private int mLastMicros;
+    // Whether there are suppressed counts, which are not summarized yet.
+    private boolean mHasSuppressed;
+
+    // Limits are logs per minute indexed by ordinals of severities, where 0 is no limit. Null limits disable
+    // limiting by tags or by pids. Tables of buckets are rounded up to a power of two.
+    public LogRateLimiter(LogConsumer consumer, int[] tagLimits, int[] pidLimits, int capacity) {
+        mConsumer = Checks.checkArgNotNull(consumer, "consumer");
+        mTagLimits = checkLimits(tagLimits, "tagLimits");
+        mPidLimits = checkLimits(pidLimits, "pidLimits");
+        mTagBuckets = tagLimits != null ? new BucketTable(capacity) : null;
+        mPidBuckets = pidLimits != null ? new BucketTable(capacity) : null;
+    }
+
+    @Override
+    public void consume(LogEntry logEntry) {
+        final long date = logEntry.date.getTime();
+        if (date >= mLastDate) {
+            mLastDate = date;
+            mLastMicros = logEntry.micros;
+        }
+        final int severity = logEntry.severity != null ? logEntry.severity.ordinal() : 0;
+        final int tagBucket = mTagBuckets != null && mTagLimits[severity] > 0
+                ? findBucket(mTagBuckets, getTagKey(logEntry), logEntry.logTag, getUninternedTag(logEntry), severity, mTagLimits[severity])
+                : -1;
+        final int pidBucket = mPidBuckets != null && mPidLimits[severity] > 0
+                ? findBucket(mPidBuckets, logEntry.pid, null, null, severity, mPidLimits[severity])
+                : -1;
+
+        // The log is counted by the bucket of the tag if it is empty, otherwise by the bucket of the pid.
+        if (tagBucket >= 0 && mTagBuckets.tokens[tagBucket] < TOKEN_UNITS) {
+            suppress(mTagBuckets, tagBucket, logEntry);
+            return;
+        }
+        if (pidBucket >= 0 && mPidBuckets.tokens[pidBucket] < TOKEN_UNITS) {
+            suppress(mPidBuckets, pidBucket, logEntry);
+            return;
+        }
+
+        // Summaries are passed before the log, and if the consumer retries it, they are not passed again.
+        if (tagBucket >= 0) {
+            summarize(mTagBuckets, tagBucket, false);
+        }
+        if (pidBucket >= 0) {
+            summarize(mPidBuckets, pidBucket, true);
+        }
+        mConsumer.consume(logEntry);
+        if (tagBucket >= 0) {
+            mTagBuckets.tokens[tagBucket] -= TOKEN_UNITS;
+        }
+        if (pidBucket >= 0) {
+            mPidBuckets.tokens[pidBucket] -= TOKEN_UNITS;
+        }
+    }
+
+    @Override
+    public void close() {
+        mConsumer.close();
+    }
+
+    // Passes summaries of buckets, which have tokens again. Called when there are no logs to consume.
+    // Returns milliseconds, after which it is to be called again, or -1 if there are no counts.
+    public long flushExpired() {
+        if (!mHasSuppressed) {
+            return -1;
+        }
+        final long now = Math.max(System.currentTimeMillis(), mLastDate);
+        final long tagTimeout = flushExpired(mTagBuckets, mTagLimits, now, false);
+        final long pidTimeout = flushExpired(mPidBuckets, mPidLimits, now, true);
+        final long timeout = tagTimeout < 0 || (pidTimeout >= 0 && pidTimeout < tagTimeout) ? pidTimeout : tagTimeout;
+        mHasSuppressed = timeout >= 0;
+        return timeout;
+    }
+
+    private long flushExpired(BucketTable table, int[] limits, long now, boolean byPid) {
+        if (table == null) {
+            return -1;
+        }
+        long timeout = -1;
+        for (int bucket = 0; bucket < table.suppressedCounts.length; ++bucket) {
+            if (table.suppressedCounts[bucket] == 0) {
+                continue;
+            }
+            final int limit = limits[bucket % SEVERITY_COUNT];
+            refill(table, bucket, limit, now);
+            if (table.tokens[bucket] >= TOKEN_UNITS) {
+                summarize(table, bucket, byPid);
+                continue;
+            }
+            final long bucketTimeout = (TOKEN_UNITS - table.tokens[bucket] + limit - 1) / limit;
+            timeout = timeout < 0 ? bucketTimeout : Math.min(timeout, bucketTimeout);
+        }
+        return timeout;
+    }
+
+    // Returns the refilled bucket of the key and severity. The slot of the oldest key in the probe window
+    // is evicted if there is no slot of the key, and its pending counts are summarized.
+    private int findBucket(BucketTable table,
+                           long key,
+                           @Nullable LogTag logTag,
+                           @Nullable String tag,
+                           int severity,
+                           int limit) {
+        final int base = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        int slot = -1;
+        int oldest = -1;
+        for (int i = 0; i < PROBE_LENGTH; ++i) {
+            final int probe = (base + i) & table.mask;
+            if (!table.used[probe]) {
+                slot = probe;
+                initSlot(table, slot, key, logTag, tag);
+                break;
+            }
+            if (table.keys[probe] == key && LogTag.isSame(table.keyLogTags[probe], table.keyTags[probe], logTag, tag)) {
+                slot = probe;
+                break;
+            }
+            if (oldest < 0 || table.accessDates[probe] < table.accessDates[oldest]) {
+                oldest = probe;
+            }
+        }
+        if (slot < 0) {
+            // Slots of the probe window are evicted in turn if they are accessed at the same date.
+            final int next = (base + (table.evictions++ & (PROBE_LENGTH - 1))) & table.mask;
+            slot = table.accessDates[next] == table.accessDates[oldest] ? next : oldest;
+            for (int s = 0; s < SEVERITY_COUNT; ++s) {
+                summarize(table, slot * SEVERITY_COUNT + s, table == mPidBuckets);
+            }
+            initSlot(table, slot, key, logTag, tag);
+        }
+        table.accessDates[slot] = mLastDate;
+        final int bucket = slot * SEVERITY_COUNT + severity;
+        refill(table, bucket, limit, mLastDate);
+        return bucket;
+    }
+
+    private void initSlot(BucketTable table, int slot, long key, @Nullable LogTag logTag, @Nullable String tag) {
+        table.used[slot] = true;
+        table.keys[slot] = key;
+        table.keyLogTags[slot] = logTag;
+        table.keyTags[slot] = tag;
+        for (int s = 0; s < SEVERITY_COUNT; ++s) {
+            final int bucket = slot * SEVERITY_COUNT + s;
+            // Buckets of new keys are full.
+            table.tokens[bucket] = Long.MAX_VALUE;
+            table.refillDates[bucket] = mLastDate;
+            table.suppressedCounts[bucket] = 0;
+            table.logTags[bucket] = null;
+            table.tags[bucket] = null;
+        }
+    }
+
+    private static void refill(BucketTable table, int bucket, int limit, long now) {
+        final long capacity = limit * TOKEN_UNITS;
+        // Time is not moved back if dates of logs are.
+        final long elapsed = Math.max(0, now - table.refillDates[bucket]);
+        table.refillDates[bucket] = Math.max(now, table.refillDates[bucket]);
+        final long tokens = table.tokens[bucket];
+        table.tokens[bucket] = tokens >= capacity || elapsed >= capacity / limit
+                ? capacity
+                : Math.min(capacity, tokens + elapsed * limit);
+    }
+
+    // Counts and releases the log.
+    private void suppress(BucketTable table, int bucket, LogEntry logEntry) {
+        ++table.suppressedCounts[bucket];
+        table.logTags[bucket] = logEntry.logTag;
+        table.tags[bucket] = logEntry.logTag == null ? logEntry.tag : null;
+        table.pids[bucket] = logEntry.pid;
+        table.tids[bucket] = logEntry.tid;
+        mHasSuppressed = true;
+        logEntry.release();
+    }
+
+    // The count is cleared only when the summary is consumed, so it is not lost if the consumer retries.
+    private void summarize(BucketTable table, int bucket, boolean byPid) {
+        final int count = table.suppressedCounts[bucket];
+        if (count == 0) {
+            return;
+        }
+        final LogEntry summary = new LogEntry();
+        summary.reset(mLastDate);
+        summary.micros = mLastMicros;
+        summary.pid = table.pids[bucket];
+        summary.tid = table.tids[bucket];
+        summary.severity = LogSeverity.values()[bucket % SEVERITY_COUNT];
+        summary.logTag = table.logTags[bucket];
+        summary.tag = table.tags[bucket];
+        summary.text = "Rate limited: " + count + " logs of the " + (byPid ? "pid " + summary.pid : "tag") + " are suppressed.";
+        mConsumer.consume(summary);
+        table.suppressedCounts[bucket] = 0;
+    }
+
+    private static long getTagKey(LogEntry logEntry) {
+        return LogTag.hashOf(logEntry.logTag, logEntry.tag);
+    }
+
+    // Tags of logs, which are not interned, are compared by strings, and interned tags by bytes.
+    private static @Nullable String getUninternedTag(LogEntry logEntry) {
+        return logEntry.logTag == null ? String.valueOf(logEntry.tag) : null;
+    }
+
+    private static int[] checkLimits(int[] limits, String name) {
+        if (limits == null) {
+            return null;
+        }
+        if (limits.length != SEVERITY_COUNT) {
+            throw new IllegalArgumentException("Bad count of " + name + ": " + limits.length);
+        }
+        for (final int limit : limits) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Bad " + name + ": " + limit);
+            }
+        }
+        return limits;
+    }
+}
@@ -0,0 +1,348 @@
+package monik.logs;
+
+import android.support.annotation.Nullable;
+
+import monik.common.Checks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Filter rules of logs, which are loaded from JSON. Rules are checked in order, and the first matching rule
+// decides: the log is passed if its severity is not lower than the level of the rule. Logs, which match
+// no rules, are passed. A rule is a JSON object with optional fields, which are all to match:
+//   "tag":            tag, or glob of tags with '*' and '?'
+//   "pids":           array of pids
+//   "uids":           array of uids of processes
+//   "packages":       array of package names, as processes are named by their packages
+//   "textStartsWith": prefix of texts
+//   "textContains":   substring of texts
+//   "level":          min severity of passed logs: "verbose" (the default) ... "fatal", or "none" to drop logs
+// E.g. [{"tag": "chatty", "level": "none"}, {"tag": "Net*", "level": "warning"}, {"packages": ["com.app"]},
+// {"level": "error"}] drops chatty logs, passes warnings of Net* tags and all logs of the app, and errors of others.
+// Rules are compiled per tag: rules of other tags are removed, and rules after the first rule, which matches
+// all logs of the tag, are never reached. So logs are decided by the min severity of the tag, and only rules
+// with pid, uid, package or text conditions, which precede it, are checked per log, and only for severities,
+// which the rules decide differently. Thread safe.
+public final class LogRules {
+
+    public static final String LEVEL_NONE = "none";
+
+    // Level of rules, which drop all logs.
+    private static final int DROP_LEVEL = LogSeverity.values().length;
+
+    private static final byte PASS = 0;
+    private static final byte DROP = 1;
+    private static final byte CHECK = 2;
+
+    // Process info is read from /proc again after this time, as pids are reused.
+    private static final long PROCESS_INFO_TIMEOUT_MILLISECONDS = 30 * 1000;
+    private static final int PROCESS_TABLE_SIZE = 1024;
+
+    private static final class Rule {
+
+        String tag;
+        // Whether the tag is a glob.
+        boolean tagGlob;
+        long[] pids;
+        long[] uids;
+        String[] packages;
+        byte[] textPrefix;
+        byte[] textSubstring;
+        int level;
+
+        boolean matchesTag(String name) {
+            if (tag == null) {
+                return true;
+            }
+            return tagGlob ? globMatches(tag, 0, name, 0) : tag.equals(name);
+        }
+
+        // Whether the rule matches all logs of its tags.
+        boolean isUnconditional() {
+            return pids == null && uids == null && packages == null && textPrefix == null && textSubstring == null;
+        }
+
+        boolean isTextConditional() {
+            return textPrefix != null || textSubstring != null;
+        }
+    }
+
+    private static final class ProcessInfo {
+
+        final long pid;
+        final long uid;
+        final String name;
+        final long date;
+
+        ProcessInfo(long pid, long uid, String name, long date) {
+            this.pid = pid;
+            this.uid = uid;
+            this.name = name;
+            this.date = date;
+        }
+    }
+
+    // Rules of a tag.
+    public final class TagRules {
+
+        // Rules with conditions, which precede the first unconditional rule, in order.
+        private final Rule[] mRules;
+        // Level of the first unconditional rule, or 0 if there is no such rule.
+        private final int mLevel;
+        // Decisions by severities: PASS or DROP if all rules decide the same for logs of the severity,
+        // so their conditions are not checked, or CHECK.
+        private final byte[] mDecisions = new byte[LogSeverity.values().length];
+
+        private TagRules(Rule[] rules, int level) {
+            mRules = rules;
+            mLevel = level;
+            for (int severity = 0; severity < mDecisions.length; ++severity) {
+                final boolean passed = severity >= level;
+                byte decision = passed ? PASS : DROP;
+                for (final Rule rule : rules) {
+                    if (severity >= rule.level != passed) {
+                        decision = CHECK;
+                        break;
+                    }
+                }
+                mDecisions[severity] = decision;
+            }
+        }
+
+        // Logs are decided by their headers only if there are no text conditions. If a text condition is reached,
+        // and the text is not available, the log is passed, so it is to be checked again with the text.
+        public boolean canPass(LogEntry logEntry, boolean hasText) {
+            final int severity = logEntry.severity.ordinal();
+            final byte decision = mDecisions[severity];
+            if (decision != CHECK) {
+                return decision == PASS;
+            }
+            for (final Rule rule : mRules) {
+                if (rule.isTextConditional() && !hasText) {
+                    return true;
+                }
+                if (matches(rule, logEntry)) {
+                    return severity >= rule.level;
+                }
+            }
+            return severity >= mLevel;
+        }
+    }
+
+    private final Rule[] mRules;
+    private final ProcessInfo[] mProcesses = new ProcessInfo[PROCESS_TABLE_SIZE];
+
+    private LogRules(Rule[] rules) {
+        mRules = rules;
+    }
+
+    public static LogRules parse(String json) throws JSONException {
+        Checks.checkArgNotNull(json, "json");
+        final JSONArray jsonRules = new JSONArray(json);
+        final Rule[] rules = new Rule[jsonRules.length()];
+        for (int i = 0; i < rules.length; ++i) {
+            rules[i] = parseRule(jsonRules.getJSONObject(i));
+        }
+        return new LogRules(rules);
+    }
+
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    // Compiles rules of the tag. Compiling checks all rules, so compiled rules are to be cached per tag.
+    public TagRules compile(@Nullable String tag) {
+        final String name = tag != null ? tag : "";
+        final List<Rule> rules = new ArrayList<>();
+        int level = 0;
+        for (final Rule rule : mRules) {
+            if (!rule.matchesTag(name)) {
+                continue;
+            }
+            if (rule.isUnconditional()) {
+                level = rule.level;
+                break;
+            }
+            rules.add(rule);
+        }
+        return new TagRules(rules.toArray(new Rule[rules.size()]), level);
+    }
+
+    private boolean matches(Rule rule, LogEntry logEntry) {
+        if (rule.pids != null && !contains(rule.pids, logEntry.pid)) {
+            return false;
+        }
+        if (rule.uids != null || rule.packages != null) {
+            final ProcessInfo process = getProcessInfo(logEntry.pid);
+            if (rule.uids != null && !contains(rule.uids, process.uid)) {
+                return false;
+            }
+            if (rule.packages != null && !contains(rule.packages, process.name)) {
+                return false;
+            }
+        }
+        if (rule.textPrefix != null && !logEntry.textStartsWith(rule.textPrefix)) {
+            return false;
+        }
+        if (rule.textSubstring != null && !logEntry.textContains(rule.textSubstring)) {
+            return false;
+        }
+        return true;
+    }
+
+    // Process infos are cached by pids. Infos are immutable, so they are shared by threads without locks.
+    private ProcessInfo getProcessInfo(long pid) {
+        final int slot = (int) (pid & (PROCESS_TABLE_SIZE - 1));
+        final long now = System.currentTimeMillis();
+        ProcessInfo process = mProcesses[slot];
+        if (process == null || process.pid != pid || now - process.date >= PROCESS_INFO_TIMEOUT_MILLISECONDS) {
+            process = new ProcessInfo(pid, readProcessUid(pid), readProcessName(pid), now);
+            mProcesses[slot] = process;
+        }
+        return process;
+    }
+
+    private static Rule parseRule(JSONObject jsonRule) throws JSONException {
+        final Rule rule = new Rule();
+        if (jsonRule.has("tag")) {
+            rule.tag = jsonRule.getString("tag");
+            rule.tagGlob = rule.tag.indexOf('*') >= 0 || rule.tag.indexOf('?') >= 0;
+        }
+        final JSONArray pids = jsonRule.optJSONArray("pids");
+        if (pids != null) {
+            rule.pids = new long[pids.length()];
+            for (int i = 0; i < rule.pids.length; ++i) {
+                rule.pids[i] = pids.getLong(i);
+            }
+        }
+        final JSONArray uids = jsonRule.optJSONArray("uids");
+        if (uids != null) {
+            rule.uids = new long[uids.length()];
+            for (int i = 0; i < rule.uids.length; ++i) {
+                rule.uids[i] = uids.getLong(i);
+            }
+        }
+        final JSONArray packages = jsonRule.optJSONArray("packages");
+        if (packages != null) {
+            rule.packages = new String[packages.length()];
+            for (int i = 0; i < rule.packages.length; ++i) {
+                rule.packages[i] = packages.getString(i);
+            }
+        }
+        if (jsonRule.has("textStartsWith")) {
+            rule.textPrefix = jsonRule.getString("textStartsWith").getBytes(LogUtils.UTF8);
+        }
+        if (jsonRule.has("textContains")) {
+            rule.textSubstring = jsonRule.getString("textContains").getBytes(LogUtils.UTF8);
+        }
+        rule.level = parseLevel(jsonRule.optString("level", LogSeverity.Verbose.name()));
+        return rule;
+    }
+
+    private static int parseLevel(String level) throws JSONException {
+        if (LEVEL_NONE.equalsIgnoreCase(level)) {
+            return DROP_LEVEL;
+        }
+        for (final LogSeverity severity : LogSeverity.values()) {
+            if (severity.name().equalsIgnoreCase(level)) {
+                return severity.ordinal();
+            }
+        }
+        throw new JSONException("Unexpected level: " + level);
+    }
+
+    private static boolean globMatches(String glob, int globIndex, String name, int nameIndex) {
+        while (globIndex < glob.length()) {
+            final char c = glob.charAt(globIndex);
+            if (c == '*') {
+                for (int i = nameIndex; i <= name.length(); ++i) {
+                    if (globMatches(glob, globIndex + 1, name, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (nameIndex == name.length() || (c != '?' && c != name.charAt(nameIndex))) {
+                return false;
+            }
+            ++globIndex;
+            ++nameIndex;
+        }
+        return nameIndex == name.length();
+    }
+
+    private static boolean contains(long[] values, long value) {
+        for (final long v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(String[] values, @Nullable String value) {
+        for (final String v : values) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns -1 if the uid is not known.
+    private static long readProcessUid(long pid) {
+        final String status = readProcFile(pid, "status");
+        if (status == null) {
+            return -1;
+        }
+        for (final String line : status.split("\n")) {
+            if (line.startsWith("Uid:")) {
+                final String[] fields = line.substring(4).trim().split("\\s+");
+                try {
+                    return Long.parseLong(fields[0]);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Processes of apps are named by their packages, followed by ':' and the name of the process if it is not
+    // the main process.
+    private static @Nullable String readProcessName(long pid) {
+        final String cmdline = readProcFile(pid, "cmdline");
+        if (cmdline == null) {
+            return null;
+        }
+        int end = cmdline.indexOf('\0');
+        end = end >= 0 ? end : cmdline.length();
+        final int colon = cmdline.indexOf(':');
+        return cmdline.substring(0, colon >= 0 && colon < end ? colon : end);
+    }
+
+    private static @Nullable String readProcFile(long pid, String name) {
+        try {
+            final FileInputStream inputStream = new FileInputStream("/proc/" + pid + "/" + name);
+            try {
+                final byte[] buffer = new byte[4096];
+                int length = 0;
+                for (int read; length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) > 0; ) {
+                    length += read;
+                }
+                return new String(buffer, 0, length, LogUtils.UTF8);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            // Processes of other apps are not visible, or the process is finished.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package monik.logs;
+
+// Numbers logs of the same timestamp (date and micros) in the order they are read from a buffer, starting from 1.
+// Sequences of logs are their positions among logs of the timestamp: the index of the buffer is followed by
+// the number of the log in the buffer, so logs of several buffers are ordered by their sequences when they are
+// merged, and a position of merged logs is a sequence too. Logs are numbered before they are filtered, so
+// the numbers do not depend on filters and stages of consumers, and the same logs get the same numbers when they
+// are read again after restart. Not thread safe: it is used on the reading thread of the buffer.
+public final class LogSequencer {
+
+    public static final int MAX_BUFFER_COUNT = 8;
+
+    private static final int NUMBER_BITS = 24;
+    private static final int MAX_NUMBER = (1 << NUMBER_BITS) - 1;
+
+    private final int mBufferIndex;
+    private long mLastDate = -1;
+    private int mLastMicros;
+    private int mLastNumber;
+
+    // Index of the buffer among buffers, which logs are read from.
+    public LogSequencer(int bufferIndex) {
+        if (bufferIndex < 0 || bufferIndex >= MAX_BUFFER_COUNT) {
+            throw new IllegalArgumentException("Bad buffer index: " + bufferIndex);
+        }
+        mBufferIndex = bufferIndex;
+    }
+
+    public void number(LogEntry logEntry) {
+        final long date = logEntry.date.getTime();
+        if (date == mLastDate && logEntry.micros == mLastMicros) {
+            mLastNumber = Math.min(mLastNumber + 1, MAX_NUMBER);
+        } else {
+            mLastDate = date;
+            mLastMicros = logEntry.micros;
+            mLastNumber = 1;
+        }
+        logEntry.sequence = toSequence(mBufferIndex, mLastNumber);
+    }
+
+    public static int toSequence(int bufferIndex, int number) {
+        return (bufferIndex << NUMBER_BITS) | Math.min(number, MAX_NUMBER);
+    }
+
+    public static int getBufferIndex(int sequence) {
+        return sequence >>> NUMBER_BITS;
+    }
+
+    public static int getNumber(int sequence) {
+        return sequence & MAX_NUMBER;
+    }
+}
@@ -1,6 +1,13 @@
 package monik.logs;
 
+import android.support.annotation.Nullable;
+
 public interface LogSource {
     void start(LogConsumer consumer);
+
+    // The header filter is applied to logs with header fields only: date, pid, tid, severity, tag and buffer.
+    // Texts of logs, which are not passed by the header filter, are skipped without assembling.
+    void start(LogConsumer consumer, @Nullable LogFilter headerFilter);
+
     void close();
 }
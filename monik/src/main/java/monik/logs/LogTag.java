@@ -0,0 +1,64 @@
+package monik.logs;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+// Interned tag of logs: its name and UTF-8 bytes are shared by all logs with the tag.
+public final class LogTag {
+
+    public final String name;
+    public final byte[] bytes;
+    final int hash;
+
+    // Per-tag decisions of the log consumer, so they are made once per tag rather than per log.
+    private volatile Object mMeta;
+
+    LogTag(byte[] source, int offset, int length, int hash) {
+        this.bytes = new byte[length];
+        System.arraycopy(source, offset, this.bytes, 0, length);
+        this.name = new String(this.bytes, LogUtils.UTF8);
+        this.hash = hash;
+    }
+
+    public Object getMeta() {
+        return mMeta;
+    }
+
+    public void setMeta(Object meta) {
+        mMeta = meta;
+    }
+
+    boolean equals(byte[] source, int offset, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (bytes[i] != source[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Hash of the tag name, which is the same for interned and not interned tags.
+    static int hashOf(@Nullable LogTag logTag, @Nullable String tag) {
+        return String.valueOf(logTag != null ? logTag.name : tag).hashCode();
+    }
+
+    // Compares tags by contents, as equal tags are interned by different tables, or are evicted and interned
+    // again, or are not interned. The tag string is used if the tag is not interned.
+    static boolean isSame(@Nullable LogTag logTag1, @Nullable String tag1, @Nullable LogTag logTag2, @Nullable String tag2) {
+        if (logTag1 != null && logTag2 != null) {
+            return logTag1 == logTag2 || (logTag1.hash == logTag2.hash && Arrays.equals(logTag1.bytes, logTag2.bytes));
+        }
+        final String name1 = logTag1 != null ? logTag1.name : tag1;
+        final String name2 = logTag2 != null ? logTag2.name : tag2;
+        return name1 != null ? name1.equals(name2) : name2 == null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,47 @@
+package monik.logs;
+
+// Bounded table of interned tags, which are looked up by UTF-8 bytes without allocations.
+// A tag is looked up in a short probe window; if the window is full of other tags, one of them is evicted.
+// Not thread safe: every reader owns its table.
+public final class LogTagTable {
+
+    private static final int PROBE_LENGTH = 4;
+
+    private final LogTag[] mSlots;
+    private final int mMask;
+    private int mEvictions;
+
+    public LogTagTable(int capacity) {
+        int size = PROBE_LENGTH;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new LogTag[size];
+        mMask = size - 1;
+    }
+
+    public LogTag intern(byte[] source, int offset, int length) {
+        final int hash = hash(source, offset, length);
+        for (int i = 0; i < PROBE_LENGTH; ++i) {
+            final int slot = (hash + i) & mMask;
+            final LogTag tag = mSlots[slot];
+            if (tag == null) {
+                return mSlots[slot] = new LogTag(source, offset, length, hash);
+            }
+            if (tag.hash == hash && tag.equals(source, offset, length)) {
+                return tag;
+            }
+        }
+        // Tags of the probe window are evicted in turn.
+        final int slot = (hash + (mEvictions++ & (PROBE_LENGTH - 1))) & mMask;
+        return mSlots[slot] = new LogTag(source, offset, length, hash);
+    }
+
+    private static int hash(byte[] source, int offset, int length) {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            hash = 31 * hash + source[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
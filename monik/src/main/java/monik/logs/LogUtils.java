@@ -4,30 +4,68 @@ import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
+import android.support.annotation.Nullable;
 
+import monik.common.ByteArrayBuilder;
 import monik.common.Checks;
 
+import java.nio.charset.Charset;
+
 public class LogUtils {
 
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
     private static final String LINE_SEPARATOR = getLineSeparator();
 
     private LogUtils() {
     }
 
     public static String toText(LogEntry logEntry) {
+        return toText(logEntry, false);
+    }
+
+    // The buffer line is written only if it is asked, e.g. if logs of several buffers are captured,
+    // so the text of logs of a single buffer is not changed.
+    public static String toText(LogEntry logEntry, boolean withBuffer) {
         if (logEntry == null) {
             return "" + logEntry;
         }
         StringBuilder log = new StringBuilder();
-        log.append( "date: '" + logEntry.date     + "'").append(LINE_SEPARATOR);
-        log.append(  "pid: '" + logEntry.pid      + "'").append(LINE_SEPARATOR);
-        log.append(  "tid: '" + logEntry.tid      + "'").append(LINE_SEPARATOR);
-        log.append("level: '" + logEntry.severity + "'").append(LINE_SEPARATOR);
-        log.append(  "tag: '" + logEntry.tag      + "'").append(LINE_SEPARATOR);
-        log.append( "text: '" + logEntry.text     + "'");
+        log.append(  "date: '" + logEntry.date      + "'").append(LINE_SEPARATOR);
+        log.append(   "pid: '" + logEntry.pid       + "'").append(LINE_SEPARATOR);
+        log.append(   "tid: '" + logEntry.tid       + "'").append(LINE_SEPARATOR);
+        log.append( "level: '" + logEntry.severity  + "'").append(LINE_SEPARATOR);
+        log.append(   "tag: '" + logEntry.getTag()  + "'").append(LINE_SEPARATOR);
+        log.append(  "text: '" + logEntry.getText() + "'");
+        if (withBuffer) {
+            log.append(LINE_SEPARATOR).append("buffer: '" + logEntry.buffer + "'");
+        }
         return log.toString();
     }
 
+    // Writes the same UTF-8 text as toText, but tag and text bytes are copied without decoding.
+    public static void writeText(LogEntry logEntry, boolean withBuffer, ByteArrayBuilder out) {
+        out.append(  "date: '").append(String.valueOf(logEntry.date)).append("'").append(LINE_SEPARATOR);
+        out.append(   "pid: '").append(Long.toString(logEntry.pid)).append("'").append(LINE_SEPARATOR);
+        out.append(   "tid: '").append(Long.toString(logEntry.tid)).append("'").append(LINE_SEPARATOR);
+        out.append( "level: '").append(String.valueOf(logEntry.severity)).append("'").append(LINE_SEPARATOR);
+        if (logEntry.tag == null && logEntry.logTag != null) {
+            out.append(   "tag: '").append(logEntry.logTag.bytes);
+        } else {
+            out.append(   "tag: '").append(String.valueOf(logEntry.tag));
+        }
+        out.append("'").append(LINE_SEPARATOR);
+        if (logEntry.text == null && logEntry.bytes != null) {
+            out.append(  "text: '").append(logEntry.bytes, logEntry.textOffset, logEntry.textLength);
+        } else {
+            out.append(  "text: '").append(String.valueOf(logEntry.text));
+        }
+        out.append("'");
+        if (withBuffer) {
+            out.append(LINE_SEPARATOR).append("buffer: '").append(String.valueOf(logEntry.buffer)).append("'");
+        }
+    }
+
     public static LogConsumer makeFiltering(final LogConsumer consumer, final LogFilter filter) {
         Checks.checkArgNotNull(consumer, "consumer");
         Checks.checkArgNotNull(filter, "filter");
@@ -36,6 +74,8 @@ public class LogUtils {
             public void consume(LogEntry logEntry) {
                 if (filter.canPass(logEntry)) {
                     consumer.consume(logEntry);
+                } else {
+                    logEntry.release();
                 }
             }
 
@@ -46,6 +86,32 @@ public class LogUtils {
         };
     }
 
+    // Returns the filter, which passes logs passed by all not null filters, or null if there are no such filters.
+    public static @Nullable LogFilter combineFilters(final LogFilter... filters) {
+        int count = 0;
+        LogFilter last = null;
+        for (final LogFilter filter : filters) {
+            if (filter != null) {
+                ++count;
+                last = filter;
+            }
+        }
+        if (count <= 1) {
+            return last;
+        }
+        return new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                for (final LogFilter filter : filters) {
+                    if (filter != null && !filter.canPass(logEntry)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
     public static String getLineSeparator() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
                 ? System.lineSeparator()
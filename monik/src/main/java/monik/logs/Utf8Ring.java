@@ -0,0 +1,91 @@
+package monik.logs;
+
+// Reusable ring of bytes which backs UTF-8 tags and texts of logs.
+// Slices are allocated at the head and may be released in any order; the space of a released slice is reused
+// as soon as all slices allocated before it are released too.
+public final class Utf8Ring {
+
+    private static final int SLICE_HEADER_SIZE = 4;
+
+    private final Object mSync = new Object();
+    private final byte[] mArray;
+    private int mHead;
+    private int mTail;
+    private int mWrapPosition = -1;
+    private int mUsed;
+
+    public Utf8Ring(int capacity) {
+        if (capacity <= SLICE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Too small capacity: " + capacity);
+        }
+        mArray = new byte[capacity];
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    // Returns the offset of the allocated slice in the array, or -1 if there is no space now.
+    public int allocate(int length) {
+        final int size = SLICE_HEADER_SIZE + length;
+        synchronized (mSync) {
+            int position = -1;
+            if (mUsed == 0) {
+                mHead = 0;
+                mTail = 0;
+                mWrapPosition = -1;
+            }
+            if (mWrapPosition < 0) {
+                if (mArray.length - mHead >= size) {
+                    position = mHead;
+                } else if (mTail >= size) {
+                    mWrapPosition = mHead;
+                    position = 0;
+                }
+            } else if (mTail - mHead >= size) {
+                position = mHead;
+            }
+            if (position < 0) {
+                return -1;
+            }
+            writeInt(position, length);
+            mHead = position + size;
+            mUsed += size;
+            return position + SLICE_HEADER_SIZE;
+        }
+    }
+
+    public void release(int offset) {
+        synchronized (mSync) {
+            final int position = offset - SLICE_HEADER_SIZE;
+            writeInt(position, ~readInt(position));
+            while (mUsed > 0) {
+                if (mTail == mWrapPosition) {
+                    mTail = 0;
+                    mWrapPosition = -1;
+                }
+                final int length = readInt(mTail);
+                if (length >= 0) {
+                    break;
+                }
+                final int size = SLICE_HEADER_SIZE + ~length;
+                mTail += size;
+                mUsed -= size;
+            }
+        }
+    }
+
+    private int readInt(int position) {
+        return (mArray[position] & 0xFF)
+             | ((mArray[position + 1] & 0xFF) << 8)
+             | ((mArray[position + 2] & 0xFF) << 16)
+             | (mArray[position + 3] << 24);
+    }
+
+    private void writeInt(int position, int value) {
+        mArray[position] = (byte) value;
+        mArray[position + 1] = (byte) (value >> 8);
+        mArray[position + 2] = (byte) (value >> 16);
+        mArray[position + 3] = (byte) (value >> 24);
+    }
+}
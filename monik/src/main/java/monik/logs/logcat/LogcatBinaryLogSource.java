@@ -0,0 +1,98 @@
+package monik.logs.logcat;
+
+import android.support.annotation.Nullable;
+
+import monik.common.Checks;
+import monik.common.Logger;
+import monik.logs.LogConsumer;
+import monik.logs.LogFilter;
+import monik.logs.LogMerger;
+import monik.logs.LogSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads binary logger entries, so logd does not format logs to text and they are not parsed back.
+// Only text buffers are supported: payloads of the events buffer are binary event records.
+public class LogcatBinaryLogSource implements LogSource {
+
+    private final String[] mBuffers;
+    private final int mLogcatLastLogsCount;
+    private final LogcatFilterSpec mLogcatFilter;
+    private final LogcatLogSource.PidTidFilter mPidTidFilter;
+    private final Logger mLogger;
+    private final List<LogcatBinaryReader> mReaders = new ArrayList<>();
+    private LogConsumer mLogConsumer;
+    private LogMerger mMerger;
+
+    public LogcatBinaryLogSource(String[] buffers,
+                                 int logcatLastLogsCount,
+                                 LogcatFilterSpec logcatFilter,
+                                 LogcatLogSource.PidTidFilter pidtidFilter,
+                                 Logger logger) {
+        mBuffers = LogcatLogSource.checkBuffers(buffers);
+        for (final String buffer : mBuffers) {
+            if (LogcatLogSource.Buffers.EVENTS.equals(buffer)) {
+                throw new IllegalArgumentException("Binary events buffer is not supported.");
+            }
+        }
+        mLogcatLastLogsCount = logcatLastLogsCount;
+        mLogcatFilter = Checks.checkArgNotNull(logcatFilter, "logcatFilter");
+        mPidTidFilter = Checks.checkArgNotNull(pidtidFilter, "pidTidFilter");
+        mLogger = Checks.checkArgNotNull(logger, "logger");
+    }
+
+    @Override
+    public void start(LogConsumer consumer) {
+        start(consumer, null);
+    }
+
+    @Override
+    public void start(LogConsumer consumer, @Nullable LogFilter headerFilter) {
+        if (!mReaders.isEmpty()) {
+            throw new IllegalStateException("Multiple start is not supported.");
+        }
+        // Logcat does not filter binary logs by tags and texts, so they are filtered in process.
+        headerFilter = LogcatLogSource.makeHeaderFilter(headerFilter, mPidTidFilter, mLogcatFilter, true);
+        mLogConsumer = LogcatLogSource.makeFiltering(consumer, mPidTidFilter, mLogcatFilter, true, mLogger);
+        if (mBuffers.length > 1) {
+            mMerger = new LogMerger(
+                    mLogConsumer,
+                    LogcatLogSource.MERGE_WINDOW_MILLISECONDS,
+                    LogcatLogSource.MERGE_BUFFER_CAPACITY,
+                    mLogger);
+        }
+        for (int i = 0; i < mBuffers.length; ++i) {
+            mReaders.add(new LogcatBinaryReader(
+                    mBuffers[i],
+                    i,
+                    mLogcatLastLogsCount,
+                    mLogcatFilter,
+                    headerFilter,
+                    mLogger,
+                    mMerger != null ? mMerger.newInput() : mLogConsumer));
+        }
+        if (mMerger != null) {
+            mMerger.start();
+        }
+        for (final LogcatBinaryReader reader : mReaders) {
+            reader.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mReaders.isEmpty()) {
+            return;
+        }
+        if (mMerger != null) {
+            for (final LogcatBinaryReader reader : mReaders) {
+                reader.close();
+            }
+            mMerger.close();
+        } else {
+            mLogConsumer.close();
+            mReaders.get(0).close();
+        }
+    }
+}
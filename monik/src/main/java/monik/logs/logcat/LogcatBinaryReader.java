@@ -0,0 +1,81 @@
+package monik.logs.logcat;
+
+import android.support.annotation.Nullable;
+
+import monik.common.Checks;
+import monik.common.Logger;
+import monik.logs.LogConsumer;
+import monik.logs.LogEntry;
+import monik.logs.LogFilter;
+import monik.logs.Utf8Ring;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+class LogcatBinaryReader extends LogcatProcessReader {
+
+    private static final String LOG_TAG = "LogcatBinaryReader";
+
+    private final LogConsumer mLogConsumer;
+    private final LogFilter mHeaderFilter;
+    private final Utf8Ring mRing = new Utf8Ring(LogcatLogSource.RING_CAPACITY);
+    private final int mBufferIndex;
+
+    public LogcatBinaryReader(String buffer,
+                              int bufferIndex,
+                              int lastLogsCount,
+                              LogcatFilterSpec filter,
+                              @Nullable final LogFilter headerFilter,
+                              Logger logger,
+                              LogConsumer logConsumer) {
+        super(LOG_TAG, buffer, lastLogsCount, filter, logger);
+        mBufferIndex = bufferIndex;
+        mLogConsumer = Checks.checkArgNotNull(logConsumer, "logConsumer");
+        mHeaderFilter = headerFilter == null ? null : new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                logEntry.buffer = getBuffer();
+                return headerFilter.canPass(logEntry);
+            }
+        };
+    }
+
+    @Override
+    protected String getFormatArg() {
+        return "-B";
+    }
+
+    @Override
+    protected boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    protected void read(InputStream processStream) throws IOException, InterruptedException {
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(new BufferedInputStream(processStream), mBufferIndex);
+        while (!isCloseRequested()) {
+            final LogEntry logEntry = decoder.read(mRing, mHeaderFilter);
+            if (logEntry == null) {
+                break;
+            }
+            logEntry.buffer = getBuffer();
+            output(logEntry);
+        }
+    }
+
+    private void output(LogEntry logEntry) throws InterruptedException {
+        while (!isCloseRequested()) {
+            try {
+                mLogConsumer.consume(logEntry);
+                return;
+            } catch (Exception e) {
+                if (!shouldRetryOutput(e)) {
+                    break;
+                }
+            }
+        }
+        // The log is not consumed.
+        logEntry.release();
+    }
+}
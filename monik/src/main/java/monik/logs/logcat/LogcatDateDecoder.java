@@ -0,0 +1,116 @@
+package monik.logs.logcat;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+// Converts logcat local dates without year to epoch milliseconds.
+// The epochs of the last decoded day and minute are cached, so a date is usually decoded by arithmetic only.
+// Not thread safe: every parser owns its decoder.
+final class LogcatDateDecoder {
+
+    private static final long SECOND_MILLISECONDS = 1000;
+    private static final long MINUTE_MILLISECONDS = 60 * SECOND_MILLISECONDS;
+    private static final long HOUR_MILLISECONDS = 60 * MINUTE_MILLISECONDS;
+    private static final long DAY_MILLISECONDS = 24 * HOUR_MILLISECONDS;
+    // The default time zone is checked once a minute, as TimeZone.getDefault() returns a copy of it.
+    private static final long TIME_ZONE_CHECK_PERIOD_MILLISECONDS = MINUTE_MILLISECONDS;
+
+    private TimeZone mTimeZone;
+    private Calendar mCalendar;
+    private long mTimeZoneCheckDate;
+
+    // Current year and month (zero-based), valid while the current time is in [mCurrentMonthBegin, mCurrentMonthEnd).
+    private int mCurrentYear;
+    private int mCurrentMonth;
+    private long mCurrentMonthBegin = Long.MAX_VALUE;
+    private long mCurrentMonthEnd = Long.MIN_VALUE;
+
+    // The last decoded day: epoch of its midnight and whether time zone offset is the same during the whole day.
+    private long mDayKey = -1;
+    private long mDayBegin;
+    private boolean mDayOffsetStable;
+
+    // The last decoded minute.
+    private long mMinuteKey = -1;
+    private long mMinuteBegin;
+
+    public long toMillis(int month, int day, int hour, int minute, int second, int millis) {
+
+        final long now = System.currentTimeMillis();
+        if (now < mCurrentMonthBegin || now >= mCurrentMonthEnd || isTimeZoneChanged(now)) {
+            updateCurrentMonth(now);
+        }
+
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59) {
+            return toMillisLenient(month, day, hour, minute, second, millis);
+        }
+
+        // Date in logs is without year. So we have to check edge case: current month is january, log date is december.
+        final int year = month - 1 > mCurrentMonth ? mCurrentYear - 1 : mCurrentYear;
+
+        final long dayKey = (year * 13L + month) * 32L + day;
+        final long minuteKey = (dayKey * 24L + hour) * 60L + minute;
+        if (minuteKey != mMinuteKey) {
+            if (dayKey != mDayKey) {
+                updateDay(dayKey, year, month, day);
+            }
+            mMinuteKey = minuteKey;
+            mMinuteBegin = mDayOffsetStable
+                    ? mDayBegin + hour * HOUR_MILLISECONDS + minute * MINUTE_MILLISECONDS
+                    // Daylight saving time is switched during the day, so calendar resolves skipped and repeated hours.
+                    : toCalendarMillis(year, month, day, hour, minute, 0, 0);
+        }
+
+        return mMinuteBegin + second * SECOND_MILLISECONDS + millis;
+    }
+
+    // Time zone or its rules could be changed by the user or by an update of time zone data.
+    private boolean isTimeZoneChanged(long now) {
+        if (now >= mTimeZoneCheckDate && now - mTimeZoneCheckDate < TIME_ZONE_CHECK_PERIOD_MILLISECONDS) {
+            return false;
+        }
+        mTimeZoneCheckDate = now;
+        final TimeZone timeZone = TimeZone.getDefault();
+        return !timeZone.getID().equals(mTimeZone.getID()) || !timeZone.hasSameRules(mTimeZone);
+    }
+
+    private void updateCurrentMonth(long now) {
+        mTimeZone = TimeZone.getDefault();
+        mTimeZoneCheckDate = now;
+        mCalendar = Calendar.getInstance(mTimeZone);
+        mCalendar.setTimeInMillis(now);
+        mCurrentYear = mCalendar.get(Calendar.YEAR);
+        mCurrentMonth = mCalendar.get(Calendar.MONTH);
+        mCalendar.clear();
+        mCalendar.set(mCurrentYear, mCurrentMonth, 1);
+        mCurrentMonthBegin = mCalendar.getTimeInMillis();
+        mCalendar.add(Calendar.MONTH, 1);
+        mCurrentMonthEnd = mCalendar.getTimeInMillis();
+        // Epochs of the day and minute are of the former time zone.
+        mDayKey = -1;
+        mMinuteKey = -1;
+    }
+
+    private void updateDay(long dayKey, int year, int month, int day) {
+        mDayKey = dayKey;
+        mDayBegin = toCalendarMillis(year, month, day, 0, 0, 0, 0);
+        mDayOffsetStable = mTimeZone.getOffset(mDayBegin) == mTimeZone.getOffset(mDayBegin + DAY_MILLISECONDS - 1);
+    }
+
+    // Out of range values are rolled over, as the former SimpleDateFormat parsing did.
+    private long toMillisLenient(int month, int day, int hour, int minute, int second, int millis) {
+        long date = toCalendarMillis(mCurrentYear, month, day, hour, minute, second, millis);
+        if (mCalendar.get(Calendar.MONTH) > mCurrentMonth) {
+            mCalendar.add(Calendar.YEAR, -1);
+            date = mCalendar.getTimeInMillis();
+        }
+        return date;
+    }
+
+    private long toCalendarMillis(int year, int month, int day, int hour, int minute, int second, int millis) {
+        mCalendar.clear();
+        mCalendar.set(year, month - 1, day, hour, minute, second);
+        mCalendar.set(Calendar.MILLISECOND, millis);
+        return mCalendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,271 @@
+package monik.logs.logcat;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import monik.common.Checks;
+import monik.logs.LogEntry;
+import monik.logs.LogFilter;
+import monik.logs.LogSeverity;
+import monik.logs.LogUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// Filter of logs, which is compiled to logcat arguments as far as logcat of the platform supports it,
+// so filtered out logs do not cross the process boundary. The rest is applied in process by the residual filter.
+// Logcat writes binary logs (-B) as they are read from logd, without filtering them by tags and texts,
+// so filterspecs, silent mode and the regexp are applied in process for binary logs.
+public final class LogcatFilterSpec {
+
+    private static final class BundleKeys {
+        private static final String FILTER_SPECS = "filterSpecs";
+        private static final String SILENT       = "silent";
+        private static final String PID          = "pid";
+        private static final String UID          = "uid";
+        private static final String REGEX        = "regex";
+        private static final String SINCE_DATE   = "sinceDate";
+    }
+
+    // Build.VERSION_CODES of the platforms, which are newer than the compile SDK.
+    private static final int SDK_OREO = 26;
+    private static final int SDK_Q = 29;
+
+    // Level of silenced tags, which is above all severities.
+    private static final int SILENT_LEVEL = LogSeverity.values().length;
+
+    public static final long ANY_ID = -1;
+    public static final long ANY_DATE = -1;
+
+    // Logcat filterspecs separated by spaces: '<tag>:<priority>', e.g. 'ActivityManager:I MyApp:D *:S'.
+    public String filterSpecs = "";
+
+    // Silences tags, which are not listed in the filterspecs (logcat -s).
+    public boolean silent = false;
+
+    // Logs of the process only: logcat --pid since Android 7.0, in process before.
+    public long pid = ANY_ID;
+
+    // Logs of the user only: logcat --uid since Android 10, not filtered before.
+    public long uid = ANY_ID;
+
+    // Logs with texts matched by the regexp only: logcat -e since Android 8.0, in process before.
+    public String regex;
+
+    // Logs since the date in milliseconds, inclusive: logcat -T since Android 5.0, in process before.
+    // Logcat starts reading at the date then, so older logs are not read and discarded.
+    public long sinceDate = ANY_DATE;
+
+    public LogcatFilterSpec() {
+    }
+
+    public LogcatFilterSpec(String filterSpecs) {
+        this.filterSpecs = Checks.checkArgNotNull(filterSpecs, "filterSpecs");
+    }
+
+    public LogcatFilterSpec(Bundle bundle) {
+        filterSpecs = bundle.getString (BundleKeys.FILTER_SPECS , filterSpecs);
+        silent      = bundle.getBoolean(BundleKeys.SILENT       , silent);
+        pid         = bundle.getLong   (BundleKeys.PID          , pid);
+        uid         = bundle.getLong   (BundleKeys.UID          , uid);
+        regex       = bundle.getString (BundleKeys.REGEX        , regex);
+        sinceDate   = bundle.getLong   (BundleKeys.SINCE_DATE   , sinceDate);
+    }
+
+    public Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.putString (BundleKeys.FILTER_SPECS , filterSpecs);
+        bundle.putBoolean(BundleKeys.SILENT       , silent);
+        bundle.putLong   (BundleKeys.PID          , pid);
+        bundle.putLong   (BundleKeys.UID          , uid);
+        bundle.putString (BundleKeys.REGEX        , regex);
+        bundle.putLong   (BundleKeys.SINCE_DATE   , sinceDate);
+        return bundle;
+    }
+
+    // Adds the min severity of the tag, or silences the tag if the severity is null. The tag '*' means all tags.
+    public LogcatFilterSpec addTag(String tag, @Nullable LogSeverity minSeverity) {
+        Checks.checkArgNotNull(tag, "tag");
+        final String filterSpec = tag + ":" + (minSeverity != null ? minSeverity.name().substring(0, 1) : "S");
+        filterSpecs = filterSpecs == null || filterSpecs.isEmpty() ? filterSpec : filterSpecs + " " + filterSpec;
+        return this;
+    }
+
+    // Logcat arguments, which follow the format arguments.
+    public List<String> toLogcatArgs() {
+        return toLogcatArgs(false);
+    }
+
+    // Logcat arguments, which follow the format arguments of text or binary logs.
+    public List<String> toLogcatArgs(boolean binary) {
+        final int sdk = Build.VERSION.SDK_INT;
+        final List<String> args = new ArrayList<>();
+        if (silent && !binary) {
+            args.add("-s");
+        }
+        if (pid != ANY_ID && sdk >= Build.VERSION_CODES.N) {
+            args.add("--pid=" + pid);
+        }
+        if (uid != ANY_ID && sdk >= SDK_Q) {
+            args.add("--uid=" + uid);
+        }
+        if (regex != null && sdk >= SDK_OREO && !binary) {
+            args.add("-e");
+            args.add(regex);
+        }
+        if (hasLogcatSinceDate()) {
+            args.add("-T");
+            args.add(formatSinceDate(sinceDate, sdk));
+        }
+        if (filterSpecs != null && !binary) {
+            for (final String filterSpec : filterSpecs.trim().split("\\s+")) {
+                if (!filterSpec.isEmpty()) {
+                    args.add(filterSpec);
+                }
+            }
+        }
+        return args;
+    }
+
+    // The header part of the filter, which is not supported by logcat of the platform, or null if there is no such part.
+    public @Nullable LogFilter toResidualHeaderFilter() {
+        return toResidualHeaderFilter(false);
+    }
+
+    // The header part of the filter, which is not applied by logcat to text or binary logs, or null if there is
+    // no such part.
+    public @Nullable LogFilter toResidualHeaderFilter(boolean binary) {
+        LogFilter pidFilter = null;
+        if (pid != ANY_ID && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            final long residualPid = pid;
+            pidFilter = new LogFilter() {
+                @Override
+                public boolean canPass(LogEntry logEntry) {
+                    return residualPid == logEntry.pid;
+                }
+            };
+        }
+        LogFilter dateFilter = null;
+        if (sinceDate != ANY_DATE && !hasLogcatSinceDate()) {
+            final long residualSinceDate = sinceDate;
+            dateFilter = new LogFilter() {
+                @Override
+                public boolean canPass(LogEntry logEntry) {
+                    return logEntry.date.getTime() >= residualSinceDate;
+                }
+            };
+        }
+        return LogUtils.combineFilters(pidFilter, dateFilter, binary ? toTagFilter() : null);
+    }
+
+    // The text part of the filter, which is not supported by logcat of the platform, or null if there is no such part.
+    public @Nullable LogFilter toResidualFilter() {
+        return toResidualFilter(false);
+    }
+
+    // The text part of the filter, which is not applied by logcat to text or binary logs, or null if there is
+    // no such part.
+    public @Nullable LogFilter toResidualFilter(boolean binary) {
+        if (regex == null || (Build.VERSION.SDK_INT >= SDK_OREO && !binary)) {
+            return null;
+        }
+        final Pattern residualRegex = Pattern.compile(regex);
+        return new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                final String text = logEntry.getText();
+                return text != null && residualRegex.matcher(text).find();
+            }
+        };
+    }
+
+    // Filters logs by min severities of their tags as logcat does: the last filterspec of the tag decides,
+    // and tags without filterspecs are decided by the '*' filterspec, or are silenced in silent mode.
+    // Returns null if all logs are passed.
+    private @Nullable LogFilter toTagFilter() {
+        final HashMap<String, Integer> tagLevels = new HashMap<>();
+        int level = silent ? SILENT_LEVEL : 0;
+        if (filterSpecs != null) {
+            for (final String filterSpec : filterSpecs.trim().split("\\s+")) {
+                if (filterSpec.isEmpty()) {
+                    continue;
+                }
+                final int colon = filterSpec.lastIndexOf(':');
+                final String tag = colon >= 0 ? filterSpec.substring(0, colon) : filterSpec;
+                final int tagLevel = colon >= 0 ? parseLevel(filterSpec.substring(colon + 1), filterSpec) : 0;
+                if ("*".equals(tag)) {
+                    level = tagLevel;
+                } else {
+                    tagLevels.put(tag, tagLevel);
+                }
+            }
+        }
+        if (level == 0 && tagLevels.isEmpty()) {
+            return null;
+        }
+        final int defaultLevel = level;
+        return new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                final Integer tagLevel = tagLevels.isEmpty() ? null : tagLevels.get(logEntry.getTag());
+                final int severity = logEntry.severity != null ? logEntry.severity.ordinal() : 0;
+                return severity >= (tagLevel != null ? tagLevel : defaultLevel);
+            }
+        };
+    }
+
+    // Priorities are letters of severities, or 'S' to silence the tag, or '*' for all severities.
+    private static int parseLevel(String priority, String filterSpec) {
+        if (priority.length() == 1) {
+            final char c = Character.toUpperCase(priority.charAt(0));
+            if (c == 'S') {
+                return SILENT_LEVEL;
+            }
+            if (c == '*') {
+                return 0;
+            }
+            for (final LogSeverity severity : LogSeverity.values()) {
+                if (severity.name().charAt(0) == c) {
+                    return severity.ordinal();
+                }
+            }
+        }
+        throw new IllegalArgumentException("Bad filterspec: " + filterSpec);
+    }
+
+    // Whether logcat starts reading at the since date, so it replaces the count of last logs, as both are -T.
+    public boolean hasLogcatSinceDate() {
+        return sinceDate != ANY_DATE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    // Logcat parses seconds of the epoch since Android 7.0, and the local date without the year before.
+    private static String formatSinceDate(long date, int sdk) {
+        if (sdk >= Build.VERSION_CODES.N) {
+            return String.format(Locale.US, "%d.%03d", date / 1000, date % 1000);
+        }
+        return new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(date));
+    }
+
+    // Whether the uid is ignored, because logcat of the platform does not support it.
+    public boolean isUidIgnored() {
+        return uid != ANY_ID && Build.VERSION.SDK_INT < SDK_Q;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("filterSpecs=" + filterSpecs);
+        sb.append("; silent=" + silent);
+        sb.append("; pid=" + pid);
+        sb.append("; uid=" + uid);
+        sb.append("; regex=" + regex);
+        sb.append("; sinceDate=" + sinceDate);
+        return sb.toString();
+    }
+}
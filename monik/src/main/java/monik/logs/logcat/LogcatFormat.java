@@ -0,0 +1,17 @@
+package monik.logs.logcat;
+
+public enum LogcatFormat {
+
+    // Text logs (logcat -v long), read by LogcatLogSource.
+    Long,
+
+    // Binary logger entries (logcat -B), read by LogcatBinaryLogSource.
+    Binary,
+
+    // Single line text logs (logcat -v threadtime), read by LogcatLogSource.
+    ThreadTime,
+
+    // Single line text logs with UTC epoch dates in microseconds (logcat -v threadtime -v epoch -v usec -v UTC),
+    // read by LogcatLogSource. Epoch dates are supported since Android 7.0.
+    Epoch
+}
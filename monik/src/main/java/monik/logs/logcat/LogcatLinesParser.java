@@ -3,117 +3,366 @@ package monik.logs.logcat;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import monik.common.ByteArrayBuilder;
 import monik.logs.LogEntry;
 import monik.logs.LogSeverity;
+import monik.logs.LogTagTable;
 import monik.logs.LogUtils;
+import monik.logs.Utf8Ring;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
+// Assembles logs from UTF-8 lines of logcat output: the begin of log line is followed by the text lines.
 class LogcatLinesParser {
 
     // Matched sample: [ 12-27 19:08:17.523 26172:26172 E/SomeTag ]
-    private static final String START_LOG_REGEXP = ""
-            + "^\\["
-            + "\\s*\\d{1,2}-\\d{1,2}"
-            + "\\s+\\d{1,2}:\\d{1,2}:\\d{1,2}.\\d{1,3}"
-            + "\\s+\\d+\\s*:\\s*\\d+"
-            + "\\s+[VDIWEAFvdiweaf]\\/.*"
-            + "\\s*\\]$";
-
-    private static final Pattern START_LOG_PATTERN = Pattern.compile(START_LOG_REGEXP);
+    // The begin of log is recognized by hand, but it accepts exactly the same lines as this regexp:
+    //   ^\[\s*\d{1,2}-\d{1,2}\s+\d{1,2}:\d{1,2}:\d{1,2}.\d{1,3}\s+\d+\s*:\s*\d+\s+[VDIWEAFvdiweaf]\/.*\s*\]$
+
     private static final String LINE_SEPARATOR = LogUtils.getLineSeparator();
-    private static final String LOG_LEVELS = "VDIWEFAvdiwefa";
+    private static final byte[] LINE_SEPARATOR_BYTES = LINE_SEPARATOR.getBytes(LogUtils.UTF8);
+    private static final byte[] TRUNCATION_MARK_BYTES = "...".getBytes(LogUtils.UTF8);
+    private static final int MAX_DESCRIBED_LINES = 10;
+
+    // A few hundred of tags cover almost all logs.
+    static final int TAG_TABLE_CAPACITY = 1024;
+
+    // Positions are relative to the begin of log line.
+    private static final class Header {
+        int month;
+        int day;
+        int hour;
+        int minute;
+        int second;
+        int millis;
+        int pidBegin;
+        int pidEnd;
+        int tidBegin;
+        int tidEnd;
+        LogSeverity severity;
+        int tagBegin;
+        int tagEnd;
+    }
+
+    private Header mScanHeader = new Header();
+    private Header mLogHeader = new Header();
+    private final LogcatDateDecoder mDateDecoder = new LogcatDateDecoder();
+    private final LogTagTable mTagTable = new LogTagTable(TAG_TABLE_CAPACITY);
+
+    // The current log: its begin of log line followed by its text lines.
+    private final ByteArrayBuilder mLogBytes = new ByteArrayBuilder(1024);
+    private int mTextBegin = -1;
+    private int mLastLineBegin;
+    private int mLineCount;
+
+    // The header of the current log is parsed by beginLog. Texts of skipped logs are not assembled,
+    // and skipped logs are not passed to consumers, so their entries are reused.
+    private LogEntry mLogEntry;
+    private boolean mSkipped;
 
     public static String getFormatArg() {
         return "-v long";
     }
 
-    public static @Nullable LogEntry parseLogLines(@NonNull List<String> logLines, @Nullable StringBuilder buffer) {
+    public boolean isBeginOfLog(@NonNull byte[] buffer, int offset, int length) {
+        return scanBeginOfLog(buffer, offset, offset + length, mScanHeader);
+    }
 
-        if (logLines.size() < 2) { // beginOfLog + text
+    // Starts the new log with the line which has been recognized by the last isBeginOfLog call.
+    // Returns the log with header fields only, or null if the header is bad: the log is skipped then.
+    public @Nullable LogEntry beginLog(@NonNull byte[] buffer, int offset, int length) {
+        final Header header = mLogHeader;
+        mLogHeader = mScanHeader;
+        mScanHeader = header;
+        mLogBytes.setLength(0);
+        mLogBytes.append(buffer, offset, length);
+        mTextBegin = length;
+        mLastLineBegin = length;
+        mLineCount = 1;
+        final LogEntry logEntry = mSkipped && mLogEntry != null ? mLogEntry : new LogEntry();
+        mLogEntry = null;
+        mSkipped = true;
+        try {
+            parseHeader(logEntry);
+        } catch (NumberFormatException e) {
             return null;
         }
+        mLogEntry = logEntry;
+        mSkipped = false;
+        return logEntry;
+    }
 
-        try {
-            final LogEntry logEntry = new LogEntry();
-            final String beginOfLog = logLines.get(0);
-            final String[] words = splitBeginOfLog(beginOfLog);
-            logEntry.date = logWordsToDate(words);
-            logEntry.pid = logWordsToPid(words);
-            logEntry.tid = logWordsToTid(words);
-            logEntry.severity = logWordsToSeverity(words);
-            logEntry.tag = logWordsToTag(words);
-
-            if (buffer == null) {
-                buffer = new StringBuilder();
+    // Skips the current log: its text lines are dropped till the next log.
+    public void skipLog() {
+        mSkipped = true;
+    }
+
+    public boolean hasLog() {
+        return mTextBegin >= 0;
+    }
+
+    // The begin of log line is counted too.
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public void appendLine(@NonNull byte[] buffer, int offset, int length, boolean truncated) {
+        if (mSkipped) {
+            return;
+        }
+        mLastLineBegin = mLogBytes.length();
+        if (mLineCount > 1) {
+            mLogBytes.append(LINE_SEPARATOR_BYTES);
+        }
+        mLogBytes.append(buffer, offset, length);
+        if (truncated) {
+            mLogBytes.append(TRUNCATION_MARK_BYTES);
+        }
+        ++mLineCount;
+    }
+
+    public void removeLastLine() {
+        if (mLineCount > 1) {
+            mLogBytes.setLength(mLastLineBegin);
+            --mLineCount;
+        }
+    }
+
+    public void clearLog() {
+        mLogBytes.setLength(0);
+        mTextBegin = -1;
+        mLineCount = 0;
+        if (!mSkipped) {
+            mLogEntry = null;
+        }
+    }
+
+    // Text of the log is placed to the ring. Returns null if there is no text or the log is skipped.
+    public @Nullable LogEntry parseLog(@NonNull Utf8Ring ring) {
+        if (mLineCount < 2 || mSkipped || mLogEntry == null) { // beginOfLog + text
+            return null;
+        }
+        mLogEntry.setTextBytes(ring, mLogBytes.array(), mTextBegin, mLogBytes.length());
+        return mLogEntry;
+    }
+
+    private void parseHeader(@NonNull LogEntry logEntry) {
+        final Header header = mLogHeader;
+        final byte[] logBytes = mLogBytes.array();
+        logEntry.reset(mDateDecoder.toMillis(
+                header.month, header.day, header.hour, header.minute, header.second, header.millis));
+        logEntry.pid = parseNumber(logBytes, header.pidBegin, header.pidEnd);
+        logEntry.tid = parseNumber(logBytes, header.tidBegin, header.tidEnd);
+        logEntry.severity = header.severity;
+        logEntry.logTag = mTagTable.intern(logBytes, header.tagBegin, header.tagEnd - header.tagBegin);
+    }
+
+    public String describeLog() {
+        final StringBuilder description = new StringBuilder();
+        description.append("Bad lines [");
+        description.append(mLineCount);
+        description.append("]: { ");
+        int idx = 0;
+        if (mLineCount > 0) {
+            final byte[] logBytes = mLogBytes.array();
+            final String text = new String(logBytes, mTextBegin, mLogBytes.length() - mTextBegin, LogUtils.UTF8);
+            final String[] textLines = text.split(LINE_SEPARATOR, -1);
+            for (int end = Math.min(mLineCount, MAX_DESCRIBED_LINES); idx < end; ++idx) {
+                description.append(LINE_SEPARATOR);
+                description.append("#");
+                description.append(idx);
+                description.append(": ");
+                description.append(idx == 0
+                        ? new String(logBytes, 0, mTextBegin, LogUtils.UTF8)
+                        : textLines[Math.min(idx - 1, textLines.length - 1)]);
             }
-            buffer.setLength(0);
-            buffer.append(logLines.get(1));
-            for (int i = 2, end = logLines.size(); i < end; ++i) {
-                buffer.append(LINE_SEPARATOR);
-                buffer.append(logLines.get(i));
+        }
+        description.append(LINE_SEPARATOR);
+        description.append((idx < mLineCount) ? ("... }") : "}");
+        return description.toString();
+    }
+
+    private static boolean scanBeginOfLog(@NonNull byte[] line, int begin, int length, @NonNull Header header) {
+
+        if (begin >= length || line[begin] != '[') {
+            return false;
+        }
+
+        // \s*\d{1,2}-\d{1,2}
+        int pos = skipWhitespaces(line, begin + 1, length);
+        int end = skipDigits(line, pos, length);
+        if (end - pos < 1 || end - pos > 2 || !isByte(line, end, length, '-')) {
+            return false;
+        }
+        header.month = (int) parseNumber(line, pos, end);
+        pos = end + 1;
+        end = skipDigits(line, pos, length);
+        if (end - pos < 1 || end - pos > 2) {
+            return false;
+        }
+        header.day = (int) parseNumber(line, pos, end);
+
+        // \s+\d{1,2}:\d{1,2}:
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end) {
+            return false;
+        }
+        end = skipDigits(line, pos, length);
+        if (end - pos < 1 || end - pos > 2 || !isByte(line, end, length, ':')) {
+            return false;
+        }
+        header.hour = (int) parseNumber(line, pos, end);
+        pos = end + 1;
+        end = skipDigits(line, pos, length);
+        if (end - pos < 1 || end - pos > 2 || !isByte(line, end, length, ':')) {
+            return false;
+        }
+        header.minute = (int) parseNumber(line, pos, end);
+        pos = end + 1;
+
+        // \d{1,2}.\d{1,3}
+        // Both seconds widths can match only if they end at the same position, so the first match is taken.
+        end = -1;
+        for (int secondsWidth = 2; secondsWidth >= 1 && end == -1; --secondsWidth) {
+            final int secondsEnd = pos + secondsWidth;
+            if (skipDigits(line, pos, length) < secondsEnd
+                    || secondsEnd >= length
+                    || getLineTerminatorLength(line, secondsEnd, length) > 0) {
+                continue;
+            }
+            final int millisBegin = secondsEnd + getCharLength(line, secondsEnd, length);
+            final int millisEnd = skipDigits(line, millisBegin, length);
+            if (millisEnd - millisBegin < 1 || millisEnd - millisBegin > 3) {
+                continue;
             }
+            header.second = (int) parseNumber(line, pos, secondsEnd);
+            header.millis = (int) parseNumber(line, millisBegin, millisEnd);
+            end = millisEnd;
+        }
+        if (end == -1) {
+            return false;
+        }
 
-            logEntry.text = buffer.toString();
+        // \s+\d+\s*:\s*\d+
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end) {
+            return false;
+        }
+        end = skipDigits(line, pos, length);
+        if (end == pos) {
+            return false;
+        }
+        header.pidBegin = pos - begin;
+        header.pidEnd = end - begin;
+        pos = skipWhitespaces(line, end, length);
+        if (!isByte(line, pos, length, ':')) {
+            return false;
+        }
+        pos = skipWhitespaces(line, pos + 1, length);
+        end = skipDigits(line, pos, length);
+        if (end == pos) {
+            return false;
+        }
+        header.tidBegin = pos - begin;
+        header.tidEnd = end - begin;
+
+        // \s+[VDIWEAFvdiweaf]\/
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end || pos >= length || !isByte(line, pos + 1, length, '/')) {
+            return false;
+        }
+        header.severity = toSeverity(line[pos]);
+        if (header.severity == null) {
+            return false;
+        }
+        pos += 2;
 
-            return logEntry;
-        } catch (ParseException e) {
-            throw new RuntimeException("Failed to parse log lines.", e);
+        // .*\s*\]$
+        end = length - 1;
+        if (end < pos || line[end] != ']') {
+            return false;
+        }
+        for (int i = pos; i < end; ++i) {
+            if (getLineTerminatorLength(line, i, end) > 0) {
+                // Line terminators are allowed only in the trailing whitespaces.
+                if (skipWhitespaces(line, i, end) < end) {
+                    return false;
+                }
+                break;
+            }
+        }
+        int tagEnd = end;
+        while (tagEnd > pos && isWhitespace(line[tagEnd - 1])) {
+            --tagEnd;
         }
+        header.tagBegin = pos - begin;
+        header.tagEnd = tagEnd - begin;
+
+        return true;
     }
 
-    public static boolean isBeginOfLog(@Nullable String line) {
-        return line != null && START_LOG_PATTERN.matcher(line).matches();
+    private static boolean isByte(@NonNull byte[] line, int pos, int length, char ch) {
+        return pos < length && line[pos] == ch;
     }
 
-    private static String[] splitBeginOfLog(@NonNull String beginOfLog) {
-        beginOfLog = beginOfLog.trim().substring(1, beginOfLog.length() - 2).trim(); // remove []
-        return  beginOfLog.split("\\s+");
+    static int skipWhitespaces(@NonNull byte[] line, int pos, int length) {
+        while (pos < length && isWhitespace(line[pos])) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    static int skipDigits(@NonNull byte[] line, int pos, int length) {
+        while (pos < length && isDigit(line[pos])) {
+            ++pos;
+        }
+        return pos;
     }
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
-    private static Date logWordsToDate(@NonNull String[] logWords) throws ParseException {
-        final Calendar calendar = Calendar.getInstance();
-        final String strDate = calendar.get(Calendar.YEAR) + "-" + logWords[0] + " " + logWords[1];
-        Date date = DATE_FORMAT.parse(strDate);
-        // Date in logs is without year. So we have to check edge case: current month is january, log date is december.
-        final int currentMonth = calendar.get(Calendar.MONTH);
-        calendar.setTime(date);
-        final int dateMonth = calendar.get(Calendar.MONTH);
-        if (dateMonth > currentMonth) {
-            calendar.add(Calendar.YEAR, -1);
-            date = calendar.getTime();
+    static long parseNumber(@NonNull byte[] line, int begin, int end) {
+        long number = 0;
+        for (int i = begin; i < end; ++i) {
+            number = number * 10 + (line[i] - '0');
+            if (number < 0) {
+                throw new NumberFormatException("Too big number in log header.");
+            }
         }
-        return date;
+        return number;
+    }
+
+    // The same as regexp '\d'.
+    static boolean isDigit(byte ch) {
+        return ch >= '0' && ch <= '9';
     }
 
-    private static long logWordsToPid(@NonNull String[] logWords) {
-        String strPid = logWords[2];
-        final int pos = strPid.indexOf(':');
-        strPid = strPid.substring(0, pos);
-        return Long.parseLong(strPid);
+    // The same as regexp '\s'.
+    static boolean isWhitespace(byte ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == 0x0B || ch == '\f' || ch == '\r';
     }
 
-    private static long logWordsToTid(@NonNull String[] logWords) {
-        String strTid = logWords[2];
-        final int pos = strTid.indexOf(':');
-        if (pos != strTid.length() - 1) {
-            strTid = strTid.substring(pos + 1);
-        } else {
-            strTid = logWords[3];
+    // UTF-8 length of the char at the position if it is not matched by regexp '.': \n, \r, U+0085, U+2028, U+2029.
+    private static int getLineTerminatorLength(@NonNull byte[] line, int pos, int length) {
+        final int ch = line[pos] & 0xFF;
+        if (ch == '\n' || ch == '\r') {
+            return 1;
+        }
+        if (ch == 0xC2 && pos + 1 < length && (line[pos + 1] & 0xFF) == 0x85) {
+            return 2;
+        }
+        if (ch == 0xE2 && pos + 2 < length && (line[pos + 1] & 0xFF) == 0x80
+                && ((line[pos + 2] & 0xFF) == 0xA8 || (line[pos + 2] & 0xFF) == 0xA9)) {
+            return 3;
         }
-        return Long.parseLong(strTid);
+        return 0;
     }
 
-    private static LogSeverity logWordsToSeverity(@NonNull String[] logWords) {
-        final int idx = getLogLevelIndex(logWords);
-        switch (logWords[idx].charAt(0)) {
+    // UTF-8 length of the char at the position: regexp '.' matches the whole code point.
+    private static int getCharLength(@NonNull byte[] line, int pos, int length) {
+        final int ch = line[pos] & 0xFF;
+        final int charLength = ch < 0xC0 ? 1 : (ch < 0xE0 ? 2 : (ch < 0xF0 ? 3 : 4));
+        return Math.min(charLength, length - pos);
+    }
+
+    static @Nullable LogSeverity toSeverity(byte level) {
+        switch (level) {
             case 'V': case 'v':
                 return LogSeverity.Verbose;
 
@@ -135,29 +384,6 @@ class LogcatLinesParser {
             case 'F': case 'f':
                 return LogSeverity.Fatal;
         }
-        throw new RuntimeException("Unexpected log level.");
-    }
-
-    private static String logWordsToTag(@NonNull String[] logWords) {
-        final int idx = getLogLevelIndex(logWords);
-        String tag = logWords[idx].substring(2);
-        for (int i = idx + 1; i < logWords.length; ++i) {
-            tag += ' ' + logWords[i];
-        }
-        return tag;
-    }
-
-    private static int getLogLevelIndex(@NonNull String[] logWords) {
-        int idx = 3;
-        if (logWords[idx].charAt(1) != '/') {
-            idx = 4;
-            if (logWords[idx].charAt(1) != '/') {
-                throw new IllegalArgumentException("Bad log words.");
-            }
-        }
-        if (LOG_LEVELS.indexOf(logWords[idx].charAt(0)) == -1) {
-            throw new IllegalArgumentException("Bad log words.");
-        }
-        return idx;
+        return null;
     }
 }
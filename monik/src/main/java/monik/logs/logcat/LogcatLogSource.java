@@ -9,8 +9,11 @@ import monik.common.RetryException;
 import monik.logs.LogConsumer;
 import monik.logs.LogEntry;
 import monik.logs.LogFilter;
+import monik.logs.LogMerger;
+import monik.logs.LogSequencer;
 import monik.logs.LogSource;
 import monik.logs.LogUtils;
+import monik.logs.Utf8Ring;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +23,21 @@ public class LogcatLogSource implements LogSource {
     private static final String LOG_TAG = "LogcatLogSource";
     private static final int MAX_LOG_LINES = 128;
 
+    // Logs of several buffers are merged in date order within this window.
+    static final long MERGE_WINDOW_MILLISECONDS = 250;
+    static final int MERGE_BUFFER_CAPACITY = 1024;
+
+    // Tags and texts of logs which are not released yet are kept in the ring of this capacity per buffer.
+    static final int RING_CAPACITY = 256 * 1024;
+
+    public static final class Buffers {
+        public static final String MAIN    = "main";
+        public static final String SYSTEM  = "system";
+        public static final String CRASH   = "crash";
+        public static final String EVENTS  = "events";
+        public static final String RADIO   = "radio";
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
     private static LogFilter skipThisPid() {
@@ -57,32 +75,54 @@ public class LogcatLogSource implements LogSource {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    private static final class Source {
+    public enum ReadMode {
+
+        // Polls logcat output and flushes the last log when the output is idle for a while.
+        Polling,
+
+        // Blocks on logcat output and flushes the last log as soon as its end is read: single line formats end
+        // logs at line boundaries. Logs of the long format are flushed by the next log, and the last log of a burst
+        // is flushed after a wait, if the output is idle after its empty line.
+        Blocking
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private abstract static class Source {
 
-        private final int mMaxLogLines = MAX_LOG_LINES;
+        protected final int mMaxLogLines = MAX_LOG_LINES;
+        private final String mBuffer;
         private final Logger mLogger;
         private final LogConsumer mLogConsumer;
+        private final LogFilter mHeaderFilter;
         private final LogcatReader mLogcatReader;
-        private final List<String> mLogLines;
-        private final StringBuilder mTextBuffer;
+        private final Utf8Ring mRing;
+        private final LogSequencer mSequencer;
 
-        public Source(int logcatLastLogsCount,
-                      String logcatFilter,
-                      Logger logger,
-                      final LogConsumer logConsumer) {
+        protected Source(String buffer,
+                         int bufferIndex,
+                         LogcatFormat format,
+                         int logcatLastLogsCount,
+                         LogcatFilterSpec logcatFilter,
+                         @Nullable LogFilter headerFilter,
+                         ReadMode readMode,
+                         Logger logger,
+                         final LogConsumer logConsumer) {
+            mBuffer = Checks.checkArgNotNull(buffer, "buffer");
             mLogger = Checks.checkArgNotNull(logger, "logger");
             mLogConsumer = Checks.checkArgNotNull(logConsumer, "logConsumer");
-            mLogLines = new ArrayList<>();
-            mTextBuffer = new StringBuilder();
-            mLogcatReader = new LogcatReader(logcatLastLogsCount, logcatFilter, logger, new LogcatReader.Output() {
+            mHeaderFilter = headerFilter;
+            mSequencer = new LogSequencer(bufferIndex);
+            mRing = new Utf8Ring(RING_CAPACITY);
+            mLogcatReader = new LogcatReader(buffer, format, logcatLastLogsCount, logcatFilter, readMode, logger, new LogcatReader.Output() {
                 @Override
-                public void writeLine(String line) {
-                    consumeLine(line, false);
+                public void writeLine(byte[] lineBuffer, int offset, int length) {
+                    consumeLine(lineBuffer, offset, length);
                 }
 
                 @Override
                 public void flush() {
-                    consumeLine(null, true);
+                    flushLastLog();
                 }
             });
         }
@@ -96,116 +136,328 @@ public class LogcatLogSource implements LogSource {
             mLogcatReader.close();
         }
 
-        private void consumeLine(@Nullable String line, boolean flushAnyway) {
+        protected abstract void consumeLine(byte[] lineBuffer, int offset, int length);
+
+        protected abstract void flushLastLog();
+
+        protected abstract @Nullable LogEntry parseLog(Utf8Ring ring);
+
+        protected abstract String describeLog();
+
+        // Returns false if the begun log is to be skipped: its header is bad or is not passed by the header filter.
+        // Logs are numbered before they are filtered.
+        protected final boolean canPassLogHeader(@Nullable LogEntry logHeader) {
+            if (logHeader == null) {
+                mLogger.e(LOG_TAG, "Failed to parse log header.");
+                mLogger.e(LOG_TAG, describeLog());
+                return false;
+            }
+            mSequencer.number(logHeader);
+            logHeader.buffer = mBuffer;
+            return mHeaderFilter == null || mHeaderFilter.canPass(logHeader);
+        }
 
-            if (LogcatLinesParser.isBeginOfLog(line)) {
+        protected final void flushLog() {
+            LogEntry logEntry = null;
+            try {
+                logEntry = parseLog(mRing);
+            } catch (Exception e) {
+                mLogger.e(LOG_TAG, "Failed to parse log lines.", e);
+                mLogger.e(LOG_TAG, describeLog());
+                throw e;
+            }
+            if (logEntry != null) {
+                logEntry.buffer = mBuffer;
                 try {
-                    flushLogLines();
-                    mLogLines.clear();
-                    mLogLines.add(line);
+                    mLogConsumer.consume(logEntry);
+                } catch (RetryException e) {
+                    // The log is parsed again on retry.
+                    logEntry.release();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Logs of 'logcat -v long': the begin of log line is followed by text lines until the next begin of log.
+    private static final class LongSource extends Source {
+
+        private final LogcatLinesParser mLinesParser = new LogcatLinesParser();
+
+        public LongSource(String buffer,
+                          int bufferIndex,
+                          int logcatLastLogsCount,
+                          LogcatFilterSpec logcatFilter,
+                          @Nullable LogFilter headerFilter,
+                          ReadMode readMode,
+                          Logger logger,
+                          LogConsumer logConsumer) {
+            super(buffer, bufferIndex, LogcatFormat.Long, logcatLastLogsCount, logcatFilter, headerFilter, readMode, logger, logConsumer);
+        }
+
+        @Override
+        protected void consumeLine(byte[] lineBuffer, int offset, int length) {
+            consumeLine(lineBuffer, offset, length, false);
+        }
+
+        @Override
+        protected void flushLastLog() {
+            consumeLine(null, 0, 0, true);
+        }
+
+        @Override
+        protected LogEntry parseLog(Utf8Ring ring) {
+            return mLinesParser.parseLog(ring);
+        }
+
+        @Override
+        protected String describeLog() {
+            return mLinesParser.describeLog();
+        }
+
+        private void consumeLine(@Nullable byte[] lineBuffer, int offset, int length, boolean flushAnyway) {
+
+            if (lineBuffer != null && mLinesParser.isBeginOfLog(lineBuffer, offset, length)) {
+                try {
+                    flushLog();
                 } catch (RetryException e) {
                     throw e;
                 } catch (Exception e) {
-                    mLogLines.clear();
-                    mLogLines.add(line);
+                    // The bad log is reported already.
+                }
+                if (!canPassLogHeader(mLinesParser.beginLog(lineBuffer, offset, length))) {
+                    mLinesParser.skipLog();
                 }
                 return;
             }
 
-            if (mLogLines.isEmpty()) {
+            if (!mLinesParser.hasLog()) {
                 // There is no 'beginOfLog' line.
                 return;
             }
 
-            if (line != null) {
-                if (mLogLines.size() >= mMaxLogLines - 1) {
-                    line += "...";
-                    flushAnyway = true;
-                }
-                mLogLines.add(line);
+            if (lineBuffer != null) {
+                final boolean truncated = mLinesParser.getLineCount() >= mMaxLogLines - 1;
+                mLinesParser.appendLine(lineBuffer, offset, length, truncated);
+                flushAnyway |= truncated;
             }
 
             if (flushAnyway) {
                 try {
-                    flushLogLines();
-                    mLogLines.clear();
+                    flushLog();
+                    mLinesParser.clearLog();
                 } catch (RetryException e) {
-                    if (line != null) {
-                        mLogLines.remove(mLogLines.size() - 1);
+                    if (lineBuffer != null) {
+                        mLinesParser.removeLastLine();
                     }
                     throw e;
                 } catch (Exception e) {
-                    mLogLines.clear();
+                    mLinesParser.clearLog();
                     throw e;
                 }
             }
         }
+    }
 
-        private void flushLogLines() {
-            LogEntry logEntry = null;
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Logs of 'logcat -v threadtime': every line has its header, so a log is flushed as soon as it is complete.
+    private static final class ThreadTimeSource extends Source {
+
+        private final LogcatThreadTimeParser mParser;
+
+        public ThreadTimeSource(String buffer,
+                                int bufferIndex,
+                                LogcatFormat format,
+                                int logcatLastLogsCount,
+                                LogcatFilterSpec logcatFilter,
+                                @Nullable LogFilter headerFilter,
+                                ReadMode readMode,
+                                Logger logger,
+                                LogConsumer logConsumer) {
+            super(buffer, bufferIndex, format, logcatLastLogsCount, logcatFilter, headerFilter, readMode, logger, logConsumer);
+            mParser = new LogcatThreadTimeParser(format);
+        }
+
+        @Override
+        protected void consumeLine(byte[] lineBuffer, int offset, int length) {
+
+            if (!mParser.isLogLine(lineBuffer, offset, length)) {
+                // Not a log, e.g. '--------- beginning of main'.
+                return;
+            }
+
+            if (mParser.hasLog() && !mParser.isContinuation(lineBuffer, offset)) {
+                try {
+                    flushLog();
+                } catch (RetryException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // The bad log is reported already.
+                }
+                mParser.clearLog();
+            }
+
+            if (!mParser.hasLog()) {
+                if (!canPassLogHeader(mParser.beginLog(lineBuffer, offset, length))) {
+                    mParser.skipLog();
+                }
+                return;
+            }
+
+            final boolean truncated = mParser.getLineCount() >= mMaxLogLines - 1;
+            mParser.appendLine(lineBuffer, offset, length, truncated);
+            if (truncated) {
+                try {
+                    flushLog();
+                    mParser.clearLog();
+                } catch (RetryException e) {
+                    mParser.removeLastLine();
+                    throw e;
+                } catch (Exception e) {
+                    mParser.clearLog();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        protected void flushLastLog() {
             try {
-                logEntry = LogcatLinesParser.parseLogLines(mLogLines, mTextBuffer);
+                flushLog();
+                mParser.clearLog();
+            } catch (RetryException e) {
+                throw e;
             } catch (Exception e) {
-                mLogger.e(LOG_TAG, "Failed to parse log lines.", e);
-                mTextBuffer.setLength(0);
-                mTextBuffer.append("Bad lines [");
-                mTextBuffer.append(mLogLines.size());
-                mTextBuffer.append("]: { ");
-                final String lineSeparator = LogUtils.getLineSeparator();
-                int idx = 0;
-                for (int end = Math.min(mLogLines.size(), 10); idx < end; ++idx) {
-                    mTextBuffer.append(lineSeparator);
-                    mTextBuffer.append("#");
-                    mTextBuffer.append(idx);
-                    mTextBuffer.append(": ");
-                    mTextBuffer.append(mLogLines.get(idx));
-                }
-                mTextBuffer.append(lineSeparator);
-                mTextBuffer.append((idx < mLogLines.size()) ? ("... }") : "}");
-                mLogger.e(LOG_TAG, mTextBuffer.toString());
+                mParser.clearLog();
                 throw e;
             }
-            if (logEntry != null) {
-                mLogConsumer.consume(logEntry);
-            }
+        }
+
+        @Override
+        protected LogEntry parseLog(Utf8Ring ring) {
+            return mParser.parseLog(ring);
+        }
+
+        @Override
+        protected String describeLog() {
+            return mParser.describeLog();
         }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
+    private final String[] mBuffers;
+    private final LogcatFormat mFormat;
     private final int mLogcatLastLogsCount;
-    private final String mLogcatFilter;
+    private final LogcatFilterSpec mLogcatFilter;
     private final PidTidFilter mPidTidFilter;
+    private final ReadMode mReadMode;
     private final Logger mLogger;
-    private Source mSource;
+    private final List<Source> mSources = new ArrayList<>();
+    private LogMerger mMerger;
 
-    public LogcatLogSource(int logcatLastLogsCount,
-                           String logcatFilter,
+    public LogcatLogSource(String[] buffers,
+                           LogcatFormat format,
+                           int logcatLastLogsCount,
+                           LogcatFilterSpec logcatFilter,
                            PidTidFilter pidtidFilter,
+                           ReadMode readMode,
                            Logger logger) {
+        mBuffers = checkBuffers(buffers);
+        mFormat = Checks.checkArgNotNull(format, "format");
+        if (mFormat == LogcatFormat.Binary) {
+            throw new IllegalArgumentException("Binary format is read by LogcatBinaryLogSource.");
+        }
         mLogcatLastLogsCount = logcatLastLogsCount;
         mLogcatFilter = Checks.checkArgNotNull(logcatFilter, "logcatFilter");
         mPidTidFilter = Checks.checkArgNotNull(pidtidFilter, "pidTidFilter");
+        mReadMode = Checks.checkArgNotNull(readMode, "readMode");
         mLogger = Checks.checkArgNotNull(logger, "logger");
     }
 
     @Override
     public void start(LogConsumer consumer) {
-        if (mSource != null) {
+        start(consumer, null);
+    }
+
+    @Override
+    public void start(LogConsumer consumer, @Nullable LogFilter headerFilter) {
+        if (!mSources.isEmpty()) {
             throw new IllegalStateException("Multiple start is not supported.");
         }
-        mSource = new Source(
-                mLogcatLastLogsCount,
-                mLogcatFilter,
-                mLogger,
-                LogUtils.makeFiltering(consumer, mPidTidFilter.filter));
-        mSource.start();
+        headerFilter = makeHeaderFilter(headerFilter, mPidTidFilter, mLogcatFilter, false);
+        consumer = makeFiltering(consumer, mPidTidFilter, mLogcatFilter, false, mLogger);
+        if (mBuffers.length > 1) {
+            mMerger = new LogMerger(consumer, MERGE_WINDOW_MILLISECONDS, MERGE_BUFFER_CAPACITY, mLogger);
+        }
+        for (int i = 0; i < mBuffers.length; ++i) {
+            final LogConsumer sourceConsumer = mMerger != null ? mMerger.newInput() : consumer;
+            mSources.add(mFormat == LogcatFormat.Long
+                    ? new LongSource(mBuffers[i], i, mLogcatLastLogsCount, mLogcatFilter, headerFilter, mReadMode, mLogger, sourceConsumer)
+                    : new ThreadTimeSource(mBuffers[i], i, mFormat, mLogcatLastLogsCount, mLogcatFilter, headerFilter, mReadMode, mLogger, sourceConsumer));
+        }
+        if (mMerger != null) {
+            mMerger.start();
+        }
+        for (final Source source : mSources) {
+            source.start();
+        }
     }
 
     @Override
     public void close() {
-        if (mSource != null) {
-            mSource.close();
+        for (final Source source : mSources) {
+            source.close();
+        }
+        if (mMerger != null) {
+            mMerger.close();
+        }
+    }
+
+    // Filters logs by headers before their texts are assembled: by the header filter, by the pid filter
+    // and by the header part of the logcat filter, which logcat does not apply.
+    static @Nullable LogFilter makeHeaderFilter(@Nullable LogFilter headerFilter,
+                                                PidTidFilter pidTidFilter,
+                                                LogcatFilterSpec logcatFilter,
+                                                boolean binary) {
+        return LogUtils.combineFilters(
+                pidTidFilter == PidTidFilter.Pid ? pidTidFilter.filter : null,
+                logcatFilter.toResidualHeaderFilter(binary),
+                headerFilter);
+    }
+
+    // Filters assembled logs in process by the tid filter and by the text part of the logcat filter,
+    // which logcat does not apply. The tid filter skips logs of the thread, which consumes logs.
+    static LogConsumer makeFiltering(LogConsumer consumer,
+                                     PidTidFilter pidTidFilter,
+                                     LogcatFilterSpec logcatFilter,
+                                     boolean binary,
+                                     Logger logger) {
+        if (logcatFilter.isUidIgnored()) {
+            logger.w(LOG_TAG, "Logcat does not support uid filter: " + logcatFilter.uid);
+        }
+        final LogFilter residualFilter = logcatFilter.toResidualFilter(binary);
+        if (residualFilter != null) {
+            consumer = LogUtils.makeFiltering(consumer, residualFilter);
+        }
+        return pidTidFilter == PidTidFilter.Tid ? LogUtils.makeFiltering(consumer, pidTidFilter.filter) : consumer;
+    }
+
+    static String[] checkBuffers(String[] buffers) {
+        Checks.checkArgNotNull(buffers, "buffers");
+        if (buffers.length == 0) {
+            throw new IllegalArgumentException("'buffers' is empty.");
+        }
+        // Logs are numbered by indexes of their buffers.
+        if (buffers.length > LogSequencer.MAX_BUFFER_COUNT) {
+            throw new IllegalArgumentException("Too many buffers: " + buffers.length);
+        }
+        for (final String buffer : buffers) {
+            Checks.checkArgNotNull(buffer, "buffer");
         }
+        return buffers.clone();
     }
 }
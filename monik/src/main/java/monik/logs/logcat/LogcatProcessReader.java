@@ -0,0 +1,173 @@
+package monik.logs.logcat;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import monik.common.Checks;
+import monik.common.Logger;
+import monik.common.RetryException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.Process;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Runs logcat process and reads its output on a dedicated thread.
+abstract class LogcatProcessReader {
+
+    private final Object mSync = new Object();
+    private final String mLogTag;
+    private final String mBuffer;
+    private final int mLastLogsCount;
+    private final LogcatFilterSpec mFilter;
+    private final Logger mLogger;
+    private volatile Boolean mCloseRequested = false;
+    private volatile Process mProcess;
+    private volatile Thread mThread;
+
+    protected LogcatProcessReader(String logTag,
+                                  String buffer,
+                                  int lastLogsCount,
+                                  LogcatFilterSpec filter,
+                                  Logger logger) {
+        mLogTag = Checks.checkArgNotNull(logTag, "logTag") + "[" + buffer + "]";
+        mBuffer = Checks.checkArgNotNull(buffer, "buffer");
+        mLastLogsCount = lastLogsCount;
+        mFilter = Checks.checkArgNotNull(filter, "filter");
+        mLogger = Checks.checkArgNotNull(logger, "logger");
+    }
+
+    protected abstract String getFormatArg();
+
+    // Whether logcat writes binary logs, which it does not filter by tags and texts.
+    protected boolean isBinary() {
+        return false;
+    }
+
+    protected abstract void read(InputStream processStream) throws IOException, InterruptedException;
+
+    public void start() {
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                threadFunc();
+            }
+        });
+
+        synchronized (mSync) {
+            if (mCloseRequested) {
+                throw new IllegalStateException("Close has already already requested.");
+            }
+            if (mProcess != null) {
+                throw new IllegalStateException("Multiple start is not supported.");
+            }
+            mProcess = startLogcat();
+            mThread = thread;
+            mThread.start();
+        }
+    }
+
+    public void close() {
+
+        Process process = null;
+        Thread thread = null;
+
+        synchronized (mSync) {
+            process = mProcess;
+            thread = mThread;
+            mCloseRequested = true;
+            mSync.notifyAll();
+        }
+
+        if (process != null) {
+            process.destroy();
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    protected final String getBuffer() {
+        return mBuffer;
+    }
+
+    protected final boolean isCloseRequested() {
+        synchronized (mSync) {
+            return mCloseRequested;
+        }
+    }
+
+    // Returns true if the failed output should be retried: the retry timeout is already waited.
+    protected final boolean shouldRetryOutput(Exception e) throws InterruptedException {
+        if (e instanceof RetryException) {
+            final long timeout = ((RetryException) e).getMinTimeoutMilliseconds();
+            mLogger.e(mLogTag, "RetryException [" + timeout + " ms]: " + Log.getStackTraceString(e));
+            sleep(timeout);
+            return true;
+        }
+        mLogger.e(mLogTag, "Exception: " + Log.getStackTraceString(e));
+        return false;
+    }
+
+    // Sleeps until the timeout is expired or 'close' is invoked.
+    protected final void sleep(long timeout) throws InterruptedException {
+        final long endTime = System.currentTimeMillis() + timeout;
+        synchronized (mSync) {
+            long remaining = timeout;
+            while (!mCloseRequested && remaining > 0) {
+                mSync.wait(remaining);
+                remaining = endTime - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void threadFunc() {
+
+        try {
+
+            mLogger.i(mLogTag, "Logcat reading has been started.");
+
+            read(mProcess.getInputStream());
+
+            mLogger.i(mLogTag, "Logcat reading has been finished.");
+
+        } catch (Exception e) {
+            if (isCloseRequested()) {
+                mLogger.i(mLogTag, "Logcat reading has been closed.");
+                return;
+            }
+            mLogger.e(mLogTag, "Logcat reading has been failed: " + Log.getStackTraceString(e));
+            throw new RuntimeException("Logcat reading has been failed.", e);
+        }
+    }
+
+    private Process startLogcat() {
+        ArrayList<String> args = new ArrayList<>();
+        args.add("logcat");
+        args.add("-b");
+        args.add(mBuffer);
+        args.addAll(Arrays.asList(getFormatArg().split(" ")));
+        // The since date of the filter is passed with -T instead, as logcat takes the last -T only.
+        if (mLastLogsCount >= 0 && !mFilter.hasLogcatSinceDate()) {
+            // Note: Not all logcast supports the -T option!
+            args.add("-T"); // since mLastLogsCount
+            args.add(Integer.toString(mLastLogsCount));
+        }
+        // Arguments are passed as is, so regexp of the filter is not split by spaces.
+        args.addAll(mFilter.toLogcatArgs(isBinary()));
+        final String[] command = args.toArray(new String[args.size()]);
+        try {
+            return Runtime.getRuntime().exec(command);
+        } catch (Throwable e) {
+            throw new RuntimeException("Failed to start logcat (" + TextUtils.join(" ", command) + ").", e);
+        }
+    }
+}
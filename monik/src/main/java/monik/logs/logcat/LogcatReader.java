@@ -1,191 +1,186 @@
 package monik.logs.logcat;
 
-import android.text.TextUtils;
-import android.util.Log;
-
 import monik.common.Checks;
 import monik.common.Logger;
-import monik.common.Refs;
-import monik.common.RetryException;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.Process;
-import java.util.ArrayList;
 
-class LogcatReader {
+// Splits logcat output to UTF-8 lines without decoding them.
+class LogcatReader extends LogcatProcessReader {
 
     private static final String LOG_TAG = "LogcatReader";
 
     private static final long WAIT_TIMEOUT = 500;
+    private static final int BUFFER_SIZE = 16 * 1024;
 
     public interface Output {
-        void writeLine(String line);
+        // The line bytes are valid during the call only.
+        void writeLine(byte[] buffer, int offset, int length);
         void flush();
     }
 
-    private final Object mSync = new Object();
-    private final int mLastLogsCount;
-    private final String mFilter;
-    private final Logger mLogger;
     private final Output mOutput;
-    private volatile Boolean mCloseRequested = false;
-    private volatile Process mProcess;
-    private volatile Thread mThread;
-
-    public LogcatReader(int lastLogsCount,
-                        String filter,
+    private final LogcatFormat mFormat;
+    private final LogcatLogSource.ReadMode mReadMode;
+
+    // Bytes read from the stream are in [mDataBegin, mDataEnd), the last line is in [mLineBegin, mLineEnd).
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mDataBegin;
+    private int mDataEnd;
+    private int mLineBegin;
+    private int mLineEnd;
+
+    public LogcatReader(String buffer,
+                        LogcatFormat format,
+                        int lastLogsCount,
+                        LogcatFilterSpec filter,
+                        LogcatLogSource.ReadMode readMode,
                         Logger logger,
                         Output output) {
-        mLastLogsCount = lastLogsCount;
-        mFilter = Checks.checkArgNotNull(filter, "filter");
-        mLogger = Checks.checkArgNotNull(logger, "logger");
+        super(LOG_TAG, buffer, lastLogsCount, filter, logger);
+        mFormat = Checks.checkArgNotNull(format, "format");
+        if (mFormat == LogcatFormat.Binary) {
+            throw new IllegalArgumentException("Binary format is read by LogcatBinaryReader.");
+        }
+        mReadMode = Checks.checkArgNotNull(readMode, "readMode");
         mOutput = Checks.checkArgNotNull(output, "output");
     }
 
-    public void start() {
+    @Override
+    protected String getFormatArg() {
+        return mFormat == LogcatFormat.Long
+                ? LogcatLinesParser.getFormatArg()
+                : LogcatThreadTimeParser.getFormatArg(mFormat);
+    }
+
+    @Override
+    protected void read(InputStream processStream) throws IOException, InterruptedException {
+        mDataBegin = 0;
+        mDataEnd = 0;
+        if (mReadMode == LogcatLogSource.ReadMode.Blocking) {
+            readBlocking(processStream);
+        } else {
+            readPolling(processStream);
+        }
+    }
 
-        final Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                threadFunc();
+    private void readPolling(InputStream processStream) throws IOException, InterruptedException {
+        while (!isCloseRequested()) {
+            if (!isReady(processStream)) {
+                sleep(WAIT_TIMEOUT);
+                if (!isReady(processStream)) {
+                    output(false);
+                    continue;
+                }
             }
-        });
 
-        synchronized (mSync) {
-            if (mCloseRequested) {
-                throw new IllegalStateException("Close has already already requested.");
+            if (!readLine(processStream)) {
+                break;
             }
-            if (mProcess != null) {
-                throw new IllegalStateException("Multiple start is not supported.");
+            output(true);
+
+            // Logcat writes all lines of a single line format log together.
+            // So the last log is complete if there is no data after it.
+            if (mFormat != LogcatFormat.Long && !isReady(processStream)) {
+                output(false);
             }
-            mProcess = startLogcat();
-            mThread = thread;
-            mThread.start();
         }
     }
 
-    public void close() {
-
-        Process process = null;
-        Thread thread = null;
-
-        synchronized (mSync) {
-            process = mProcess;
-            thread = mThread;
-            mCloseRequested = true;
-        }
+    private void readBlocking(InputStream processStream) throws IOException, InterruptedException {
+        while (!isCloseRequested()) {
+            if (!readLine(processStream)) {
+                break;
+            }
+            output(true);
 
-        if (process != null) {
-            process.destroy();
-        }
+            // Logcat writes all lines of a single line format log together, so the last log is complete if there
+            // is no data after it, and the end of log is detected from the stream.
+            if (mFormat != LogcatFormat.Long) {
+                if (!isReady(processStream)) {
+                    output(false);
+                }
+                continue;
+            }
 
-        if (thread != null) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                // Ignore.
+            // A log of the long format ends with an empty line, but its text may contain empty lines too, and
+            // the pipe may be empty for a moment after them. So the log is flushed by the next header, and the last
+            // log of a burst is flushed after a single wait, if there is still no data after its empty line.
+            if (mLineBegin == mLineEnd && !isReady(processStream)) {
+                sleep(WAIT_TIMEOUT);
+                if (!isReady(processStream)) {
+                    output(false);
+                }
             }
         }
     }
 
-    private void threadFunc() {
-
-        try {
-
-            final InputStream processStream = mProcess.getInputStream();
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(processStream));
-
-            final Refs.Ref<String> lineRef = new Refs.Ref<>();
+    private boolean isReady(InputStream processStream) throws IOException {
+        return mDataBegin < mDataEnd || processStream.available() > 0;
+    }
 
-            final Runnable writeLineAction = new Runnable() {
-                @Override
-                public void run() {
-                    mOutput.writeLine(lineRef.obj);
-                    lineRef.obj = null;
-                }
-            };
-            final Runnable flushAction = new Runnable() {
-                @Override
-                public void run() {
-                    mOutput.flush();
-                }
-            };
-
-            Runnable outputAction = null;
-
-            mLogger.i(LOG_TAG, "Logcat reading has been started.");
-
-            while (!isCloseRequested()) {
-
-                if (outputAction != null) {
-                    try {
-                        outputAction.run();
-                        outputAction = null;
-                    } catch (RetryException e) {
-                        final long timeout = e.getMinTimeoutMilliseconds();
-                        mLogger.e(LOG_TAG, "RetryException [" + timeout + " ms]: " + Log.getStackTraceString(e));
-                        sleep(timeout);
-                    } catch (Exception e) {
-                        mLogger.e(LOG_TAG, "Exception: " + Log.getStackTraceString(e));
-                        outputAction = null;
-                    }
-                    continue;
+    // Reads the next line without its terminator, returns false at the end of stream.
+    // Too long line is split to several lines.
+    private boolean readLine(InputStream processStream) throws IOException {
+        int searchBegin = mDataBegin;
+        while (true) {
+            for (int i = searchBegin; i < mDataEnd; ++i) {
+                if (mBuffer[i] == '\n') {
+                    setLine(mDataBegin, i);
+                    mDataBegin = i + 1;
+                    return true;
                 }
+            }
 
-                if (!bufferedReader.ready()) {
-                    sleep(WAIT_TIMEOUT);
-                    if (!bufferedReader.ready()) {
-                        outputAction = flushAction;
-                        continue;
-                    }
-                }
+            if (mDataBegin > 0) {
+                System.arraycopy(mBuffer, mDataBegin, mBuffer, 0, mDataEnd - mDataBegin);
+                mDataEnd -= mDataBegin;
+                mDataBegin = 0;
+            }
+            if (mDataEnd == mBuffer.length) {
+                setLine(0, mDataEnd);
+                mDataBegin = mDataEnd;
+                return true;
+            }
 
-                lineRef.obj = bufferedReader.readLine();
-                if (lineRef.obj != null) {
-                    outputAction = writeLineAction;
-                    continue;
+            searchBegin = mDataEnd;
+            final int count = processStream.read(mBuffer, mDataEnd, mBuffer.length - mDataEnd);
+            if (count < 0) {
+                if (mDataBegin == mDataEnd) {
+                    return false;
                 }
-
-                break;
+                setLine(mDataBegin, mDataEnd);
+                mDataBegin = mDataEnd;
+                return true;
             }
-
-            mLogger.i(LOG_TAG, "Logcat reading has been finished.");
-
-        } catch (Exception e) {
-            mLogger.e(LOG_TAG, "Logcat reading has been failed: " + Log.getStackTraceString(e));
-            throw new RuntimeException("Logcat reading has been failed.", e);
+            mDataEnd += count;
         }
     }
 
-    private boolean isCloseRequested() {
-        synchronized (mSync) {
-            return mCloseRequested;
+    private void setLine(int begin, int end) {
+        if (end > begin && mBuffer[end - 1] == '\r') {
+            --end;
         }
+        mLineBegin = begin;
+        mLineEnd = end;
     }
 
-    private void sleep(long timeout) throws InterruptedException {
-        // TODO: break sleeping if 'close' has been invoked.
-        Thread.sleep(timeout);
-        Thread.yield();
-    }
-
-    private Process startLogcat() {
-        ArrayList<String> args = new ArrayList<>();
-        args.add("logcat");
-        args.add("-b main");
-        args.add(LogcatLinesParser.getFormatArg());
-        if (mLastLogsCount >= 0) {
-            // Note: Not all logcast supports the -T option!
-            args.add("-T " + mLastLogsCount); // since mLastLogsCount
-        }
-        args.add(mFilter);
-        final String command = TextUtils.join(" ", args.toArray(new String[args.size()]));
-        try {
-            return Runtime.getRuntime().exec(command);
-        } catch (Throwable e) {
-            throw new RuntimeException("Failed to start logcat (" + command + ").", e);
+    // Writes the last line to the output or flushes the output.
+    private void output(boolean writeLine) throws InterruptedException {
+        while (!isCloseRequested()) {
+            try {
+                if (writeLine) {
+                    mOutput.writeLine(mBuffer, mLineBegin, mLineEnd - mLineBegin);
+                } else {
+                    mOutput.flush();
+                }
+                return;
+            } catch (Exception e) {
+                if (!shouldRetryOutput(e)) {
+                    return;
+                }
+            }
         }
     }
 }
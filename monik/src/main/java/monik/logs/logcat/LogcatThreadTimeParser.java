@@ -0,0 +1,314 @@
+package monik.logs.logcat;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import monik.common.ByteArrayBuilder;
+import monik.common.Checks;
+import monik.logs.LogEntry;
+import monik.logs.LogSeverity;
+import monik.logs.LogTagTable;
+import monik.logs.LogUtils;
+import monik.logs.Utf8Ring;
+
+import static monik.logs.logcat.LogcatLinesParser.parseNumber;
+import static monik.logs.logcat.LogcatLinesParser.skipDigits;
+import static monik.logs.logcat.LogcatLinesParser.skipWhitespaces;
+import static monik.logs.logcat.LogcatLinesParser.toSeverity;
+
+// Assembles logs from UTF-8 lines of 'logcat -v threadtime', where every line starts with its own header:
+//   ThreadTime: 12-27 19:08:17.523  1234  5678 E SomeTag : text
+//   Epoch:      1514401697.523456  1234  5678 E SomeTag : text
+// Every line of a multi-line text repeats the same header, so lines with identical headers are one log.
+class LogcatThreadTimeParser {
+
+    private static final String LINE_SEPARATOR = LogUtils.getLineSeparator();
+    private static final byte[] LINE_SEPARATOR_BYTES = LINE_SEPARATOR.getBytes(LogUtils.UTF8);
+    private static final byte[] TRUNCATION_MARK_BYTES = "...".getBytes(LogUtils.UTF8);
+    private static final int MAX_SECONDS_DIGITS = 18;
+    private static final int MAX_FRACTION_DIGITS = 9;
+
+    // Positions are relative to the begin of line.
+    private static final class Header {
+        long seconds;
+        int month;
+        int day;
+        int hour;
+        int minute;
+        int second;
+        int micros;
+        int pidBegin;
+        int pidEnd;
+        int tidBegin;
+        int tidEnd;
+        LogSeverity severity;
+        int tagBegin;
+        int tagEnd;
+        int textBegin;
+    }
+
+    private final boolean mEpoch;
+    private Header mScanHeader = new Header();
+    private Header mLogHeader = new Header();
+    private final LogcatDateDecoder mDateDecoder = new LogcatDateDecoder();
+    private final LogTagTable mTagTable = new LogTagTable(LogcatLinesParser.TAG_TABLE_CAPACITY);
+
+    // The current log: its first line followed by the texts of the other lines.
+    private final ByteArrayBuilder mLogBytes = new ByteArrayBuilder(1024);
+    private int mLastLineBegin;
+    private int mLineCount;
+
+    // The header of the current log is parsed by beginLog. Texts of skipped logs are not assembled,
+    // and skipped logs are not passed to consumers, so their entries are reused.
+    private LogEntry mLogEntry;
+    private boolean mSkipped;
+
+    public LogcatThreadTimeParser(LogcatFormat format) {
+        Checks.checkArgNotNull(format, "format");
+        if (format != LogcatFormat.ThreadTime && format != LogcatFormat.Epoch) {
+            throw new IllegalArgumentException("Unexpected format: " + format);
+        }
+        mEpoch = format == LogcatFormat.Epoch;
+    }
+
+    public static String getFormatArg(LogcatFormat format) {
+        return format == LogcatFormat.Epoch
+                ? "-v threadtime -v epoch -v usec -v UTC"
+                : "-v threadtime";
+    }
+
+    public boolean isLogLine(@NonNull byte[] buffer, int offset, int length) {
+        return scanLine(buffer, offset, offset + length, mScanHeader);
+    }
+
+    // Whether the line, which has been recognized by the last isLogLine call, continues the current log.
+    public boolean isContinuation(@NonNull byte[] buffer, int offset) {
+        final int headerLength = mScanHeader.textBegin;
+        if (mLineCount == 0 || headerLength != mLogHeader.textBegin) {
+            return false;
+        }
+        final byte[] logBytes = mLogBytes.array();
+        for (int i = 0; i < headerLength; ++i) {
+            if (logBytes[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Starts the new log with the line, which has been recognized by the last isLogLine call.
+    // Returns the log with header fields only, or null if the header is bad: the log is skipped then.
+    public @Nullable LogEntry beginLog(@NonNull byte[] buffer, int offset, int length) {
+        final Header header = mLogHeader;
+        mLogHeader = mScanHeader;
+        mScanHeader = header;
+        mLogBytes.setLength(0);
+        mLogBytes.append(buffer, offset, length);
+        mLastLineBegin = 0;
+        mLineCount = 1;
+        final LogEntry logEntry = mSkipped && mLogEntry != null ? mLogEntry : new LogEntry();
+        mLogEntry = null;
+        mSkipped = true;
+        try {
+            parseHeader(logEntry);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        mLogEntry = logEntry;
+        mSkipped = false;
+        return logEntry;
+    }
+
+    // Skips the current log: its lines are dropped till the next log.
+    public void skipLog() {
+        mSkipped = true;
+    }
+
+    // Appends the text of the line, which has been recognized by the last isLogLine call.
+    public void appendLine(@NonNull byte[] buffer, int offset, int length, boolean truncated) {
+        if (mSkipped) {
+            return;
+        }
+        mLastLineBegin = mLogBytes.length();
+        mLogBytes.append(LINE_SEPARATOR_BYTES);
+        mLogBytes.append(buffer, offset + mScanHeader.textBegin, length - mScanHeader.textBegin);
+        if (truncated) {
+            mLogBytes.append(TRUNCATION_MARK_BYTES);
+        }
+        ++mLineCount;
+    }
+
+    public boolean hasLog() {
+        return mLineCount > 0;
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public void removeLastLine() {
+        if (mLineCount > 1) {
+            mLogBytes.setLength(mLastLineBegin);
+            --mLineCount;
+        }
+    }
+
+    public void clearLog() {
+        mLogBytes.setLength(0);
+        mLineCount = 0;
+        if (!mSkipped) {
+            mLogEntry = null;
+        }
+    }
+
+    // Text of the log is placed to the ring. Returns null if there is no log or the log is skipped.
+    public @Nullable LogEntry parseLog(@NonNull Utf8Ring ring) {
+        if (mLineCount == 0 || mSkipped || mLogEntry == null) {
+            return null;
+        }
+        mLogEntry.setTextBytes(ring, mLogBytes.array(), mLogHeader.textBegin, mLogBytes.length());
+        return mLogEntry;
+    }
+
+    private void parseHeader(@NonNull LogEntry logEntry) {
+        final Header header = mLogHeader;
+        final byte[] logBytes = mLogBytes.array();
+        logEntry.reset(mEpoch
+                ? header.seconds * 1000 + header.micros / 1000
+                : mDateDecoder.toMillis(header.month, header.day, header.hour, header.minute, header.second, header.micros / 1000));
+        logEntry.micros = header.micros % 1000;
+        logEntry.pid = parseNumber(logBytes, header.pidBegin, header.pidEnd);
+        logEntry.tid = parseNumber(logBytes, header.tidBegin, header.tidEnd);
+        logEntry.severity = header.severity;
+        logEntry.logTag = mTagTable.intern(logBytes, header.tagBegin, header.tagEnd - header.tagBegin);
+    }
+
+    public String describeLog() {
+        final StringBuilder description = new StringBuilder();
+        description.append("Bad lines [");
+        description.append(mLineCount);
+        description.append("]: { ");
+        description.append(LINE_SEPARATOR);
+        description.append(new String(mLogBytes.array(), 0, mLogBytes.length(), LogUtils.UTF8));
+        description.append(LINE_SEPARATOR);
+        description.append("}");
+        return description.toString();
+    }
+
+    private boolean scanLine(@NonNull byte[] line, int begin, int length, @NonNull Header header) {
+
+        int pos = skipWhitespaces(line, begin, length);
+        int end;
+        if (mEpoch) {
+            // \d+\.
+            end = skipDigits(line, pos, length);
+            if (end == pos || end - pos > MAX_SECONDS_DIGITS || !isByte(line, end, length, '.')) {
+                return false;
+            }
+            header.seconds = parseNumber(line, pos, end);
+            pos = end + 1;
+        } else {
+            // \d\d-\d\d\s+\d\d:\d\d:\d\d\.
+            end = skipDigits(line, pos, length);
+            if (end - pos != 2 || !isByte(line, end, length, '-')) {
+                return false;
+            }
+            header.month = (int) parseNumber(line, pos, end);
+            pos = end + 1;
+            end = skipDigits(line, pos, length);
+            if (end - pos != 2) {
+                return false;
+            }
+            header.day = (int) parseNumber(line, pos, end);
+            pos = skipWhitespaces(line, end, length);
+            if (pos == end) {
+                return false;
+            }
+            end = skipDigits(line, pos, length);
+            if (end - pos != 2 || !isByte(line, end, length, ':')) {
+                return false;
+            }
+            header.hour = (int) parseNumber(line, pos, end);
+            pos = end + 1;
+            end = skipDigits(line, pos, length);
+            if (end - pos != 2 || !isByte(line, end, length, ':')) {
+                return false;
+            }
+            header.minute = (int) parseNumber(line, pos, end);
+            pos = end + 1;
+            end = skipDigits(line, pos, length);
+            if (end - pos != 2 || !isByte(line, end, length, '.')) {
+                return false;
+            }
+            header.second = (int) parseNumber(line, pos, end);
+            pos = end + 1;
+        }
+
+        // Milliseconds, microseconds or nanoseconds.
+        end = skipDigits(line, pos, length);
+        final int fractionDigits = end - pos;
+        if (fractionDigits < 1 || fractionDigits > MAX_FRACTION_DIGITS) {
+            return false;
+        }
+        long micros = parseNumber(line, pos, end);
+        for (int i = fractionDigits; i < 6; ++i) {
+            micros *= 10;
+        }
+        for (int i = fractionDigits; i > 6; --i) {
+            micros /= 10;
+        }
+        header.micros = (int) micros;
+
+        // \s+\d+\s+\d+\s+[VDIWEAFvdiweaf]\s
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end) {
+            return false;
+        }
+        end = skipDigits(line, pos, length);
+        if (end == pos) {
+            return false;
+        }
+        header.pidBegin = pos - begin;
+        header.pidEnd = end - begin;
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end) {
+            return false;
+        }
+        end = skipDigits(line, pos, length);
+        if (end == pos) {
+            return false;
+        }
+        header.tidBegin = pos - begin;
+        header.tidEnd = end - begin;
+        pos = skipWhitespaces(line, end, length);
+        if (pos == end || pos >= length || !isByte(line, pos + 1, length, ' ')) {
+            return false;
+        }
+        header.severity = toSeverity(line[pos]);
+        if (header.severity == null) {
+            return false;
+        }
+        pos += 2;
+
+        // The tag is padded with spaces and followed by ': ' and the text.
+        end = pos;
+        while (end < length && !(line[end] == ':' && (end + 1 == length || line[end + 1] == ' '))) {
+            ++end;
+        }
+        if (end == length) {
+            return false;
+        }
+        header.textBegin = Math.min(end + 2, length) - begin;
+        while (end > pos && line[end - 1] == ' ') {
+            --end;
+        }
+        header.tagBegin = pos - begin;
+        header.tagEnd = end - begin;
+
+        return true;
+    }
+
+    private static boolean isByte(@NonNull byte[] line, int pos, int length, char ch) {
+        return pos < length && line[pos] == ch;
+    }
+}
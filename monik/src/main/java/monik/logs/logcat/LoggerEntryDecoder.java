@@ -0,0 +1,146 @@
+package monik.logs.logcat;
+
+import android.support.annotation.Nullable;
+
+import monik.logs.LogEntry;
+import monik.logs.LogFilter;
+import monik.logs.LogSequencer;
+import monik.logs.LogSeverity;
+import monik.logs.LogTagTable;
+import monik.logs.Utf8Ring;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Decodes binary logger_entry records, as they are written by 'logcat -B' or read from logdr socket.
+// Record layout (little endian):
+//   uint16 len       - payload length
+//   uint16 hdr_size  - header size (v2 and later), 0 for v1
+//   int32  pid
+//   int32  tid
+//   int32  sec
+//   int32  nsec
+//   ...              - euid, lid, uid (depends on version)
+//   uint8  priority  - payload of text buffers: priority, tag and message, both zero terminated
+//   char   tag[]
+//   char   msg[]
+// The decoder depends on the stream only, so it can be fed by captured dumps as well.
+final class LoggerEntryDecoder {
+
+    private static final int V1_HEADER_SIZE = 20;
+    private static final int MAX_RECORD_SIZE = 2 * 0xFFFF;
+
+    private final InputStream mStream;
+    private final byte[] mRecord = new byte[MAX_RECORD_SIZE];
+    private final LogTagTable mTagTable = new LogTagTable(LogcatLinesParser.TAG_TABLE_CAPACITY);
+    private final LogSequencer mSequencer;
+    private LogEntry mSkippedEntry;
+
+    // Logs are numbered by the index of the buffer, see LogSequencer.
+    public LoggerEntryDecoder(InputStream stream, int bufferIndex) {
+        mStream = stream;
+        mSequencer = new LogSequencer(bufferIndex);
+    }
+
+    // Returns null at the end of stream. Logs, which are not passed by the header filter, are skipped
+    // before their texts are copied. Text of the log is placed to the ring.
+    public @Nullable LogEntry read(Utf8Ring ring, @Nullable LogFilter headerFilter) throws IOException {
+
+        while (readFully(0, 4, true)) {
+
+            final int payloadLength = readUInt16(0);
+            int headerSize = readUInt16(2);
+            if (headerSize == 0) {
+                headerSize = V1_HEADER_SIZE;
+            }
+            if (headerSize < V1_HEADER_SIZE) {
+                throw new IOException("Bad logger entry header size: " + headerSize);
+            }
+            readFully(4, headerSize + payloadLength - 4, false);
+
+            // Skipped logs are not passed to consumers, so the last one is reused.
+            final LogEntry logEntry = mSkippedEntry != null ? mSkippedEntry : new LogEntry();
+            mSkippedEntry = null;
+            final long sec = readInt32(12) & 0xFFFFFFFFL;
+            final long nsec = readInt32(16) & 0xFFFFFFFFL;
+            logEntry.reset(sec * 1000 + nsec / 1000000);
+            logEntry.pid = readInt32(4);
+            logEntry.tid = readInt32(8);
+
+            final int payloadBegin = headerSize;
+            final int payloadEnd = headerSize + payloadLength;
+            logEntry.severity = toSeverity(payloadLength > 0 ? mRecord[payloadBegin] : 0);
+
+            final int tagBegin = Math.min(payloadBegin + 1, payloadEnd);
+            final int tagEnd = findZero(tagBegin, payloadEnd);
+            logEntry.logTag = mTagTable.intern(mRecord, tagBegin, tagEnd - tagBegin);
+            mSequencer.number(logEntry);
+
+            if (headerFilter != null && !headerFilter.canPass(logEntry)) {
+                mSkippedEntry = logEntry;
+                continue;
+            }
+
+            final int textBegin = Math.min(tagEnd + 1, payloadEnd);
+            final int textEnd = findZero(textBegin, payloadEnd);
+            logEntry.setTextBytes(ring, mRecord, textBegin, textEnd);
+
+            return logEntry;
+        }
+        return null;
+    }
+
+    private boolean readFully(int offset, int length, boolean eofAllowed) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = mStream.read(mRecord, offset + read, length - read);
+            if (count < 0) {
+                if (eofAllowed && read == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated logger entry.");
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    private int readUInt16(int offset) {
+        return (mRecord[offset] & 0xFF) | ((mRecord[offset + 1] & 0xFF) << 8);
+    }
+
+    private int readInt32(int offset) {
+        return (mRecord[offset] & 0xFF)
+             | ((mRecord[offset + 1] & 0xFF) << 8)
+             | ((mRecord[offset + 2] & 0xFF) << 16)
+             | ((mRecord[offset + 3] & 0xFF) << 24);
+    }
+
+    private int findZero(int begin, int end) {
+        for (int i = begin; i < end; ++i) {
+            if (mRecord[i] == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // See android_LogPriority.
+    private static LogSeverity toSeverity(int priority) {
+        switch (priority) {
+            case 3:
+                return LogSeverity.Debug;
+
+            case 4:
+                return LogSeverity.Info;
+
+            case 5:
+                return LogSeverity.Warning;
+
+            case 6:
+                return LogSeverity.Error;
+        }
+        return priority < 3 ? LogSeverity.Verbose : LogSeverity.Fatal;
+    }
+}
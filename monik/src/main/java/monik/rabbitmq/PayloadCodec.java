@@ -0,0 +1,147 @@
+package monik.rabbitmq;
+
+import android.support.annotation.Nullable;
+
+import monik.common.ByteArrayBuilder;
+import monik.logs.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compression of published payloads: Deflate in the zlib format with the preset dictionary of typical log content,
+// as logs repeat the same tags, package names and stack frames, and short payloads are hardly compressed without it.
+// Payloads are marked by the content encoding, and the zlib header carries the Adler-32 of the dictionary.
+// Decoding is static, so consumers of the broker can read payloads back with this class. The encoder is not
+// thread safe.
+public final class PayloadCodec {
+
+    // The content encoding of payloads, which are compressed with the dictionary. The dictionary is never changed:
+    // a new dictionary is to have a new encoding, so payloads in queues are still decoded.
+    public static final String DEFLATE_ENCODING = "x-monik-deflate-1";
+
+    // Deflate finds matches in the dictionary as in the preceding data, and nearer matches are encoded shorter,
+    // so the most frequent content is at the end. Lines are separated by '\n' on every platform.
+    private static final byte[] DICTIONARY = (
+            "android.intent.action.com.google.android.gms.persistent" +
+            "org.json.JSONException: No value for java.util.concurrent.TimeoutException" +
+            "java.net.UnknownHostException: Unable to resolve host \"\": No address associated with hostname" +
+            "java.net.SocketTimeoutException: failed to connect to  after ms" +
+            "java.net.ConnectException: Connection refused" +
+            "java.io.IOException: java.lang.IllegalArgumentException: java.lang.IllegalStateException: " +
+            "java.lang.NullPointerException: Attempt to invoke virtual method '' on a null object reference" +
+            "WifiStateMachine ConnectivityService NetworkInfo: type: WIFI[], state: CONNECTED/CONNECTED" +
+            "Background concurrent copying GC freed AllocSpace objects, LOS objects, % free, MB/MB, paused us total ms" +
+            "Choreographer: Skipped  frames!  The application may be doing too much work on its main thread." +
+            "ActivityManager: Start proc  for activity Displayed : +ms" +
+            "\tat android.app.ActivityThread.main(ActivityThread.java:" +
+            "\tat android.os.Looper.loop(Looper.java:" +
+            "\tat android.os.Handler.dispatchMessage(Handler.java:" +
+            "\tat android.os.Handler.handleCallback(Handler.java:" +
+            "\tat java.lang.reflect.Method.invoke(Native Method)" +
+            "\tat com.android.internal.os.ZygoteInit.main(ZygoteInit.java:" +
+            "\tat com.android.internal.os.RuntimeInit$MethodAndArgsCaller.run(RuntimeInit.java:" +
+            "\tat java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:" +
+            "\tat java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:" +
+            "\tat java.lang.Thread.run(Thread.java:" +
+            "FATAL EXCEPTION: main\nProcess: , PID: " +
+            "java.lang.RuntimeException: Caused by:  ... more" +
+            "SYSTEM APPLICATION LOGIC SECURITY Exception Error Warning failed Failed " +
+            "\n\tat ").getBytes(LogUtils.UTF8);
+    private static final long DICTIONARY_ADLER = adler(DICTIONARY);
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final ByteArrayBuilder mOutput = new ByteArrayBuilder(1024);
+
+    public byte[] encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    public byte[] encode(byte[] data, int offset, int length) {
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(data, offset, length);
+        mDeflater.finish();
+        final ByteArrayBuilder output = mOutput;
+        output.setLength(0);
+        while (!mDeflater.finished()) {
+            final int begin = output.length();
+            output.setLength(begin + Math.max(256, length / 2));
+            output.setLength(begin + mDeflater.deflate(output.array(), begin, output.length() - begin));
+        }
+        return output.toByteArray();
+    }
+
+    // Releases the native memory of the encoder, which is not used after that.
+    public void close() {
+        mDeflater.end();
+    }
+
+    // Returns the payload as it is if the content encoding is null.
+    public static byte[] decode(@Nullable String contentEncoding, byte[] payload) throws DataFormatException {
+        if (contentEncoding == null) {
+            return payload;
+        }
+        if (!DEFLATE_ENCODING.equals(contentEncoding)) {
+            throw new DataFormatException("Unexpected content encoding: " + contentEncoding);
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            final ByteArrayBuilder output = new ByteArrayBuilder(payload.length * 4 + 256);
+            while (!inflater.finished()) {
+                final int begin = output.length();
+                output.setLength(begin + payload.length * 2 + 256);
+                final int count = inflater.inflate(output.array(), begin, output.length() - begin);
+                output.setLength(begin + count);
+                if (count == 0 && inflater.needsDictionary()) {
+                    if (inflater.getAdler() != DICTIONARY_ADLER) {
+                        throw new DataFormatException("Unexpected dictionary: " + inflater.getAdler());
+                    }
+                    inflater.setDictionary(DICTIONARY);
+                } else if (count == 0 && inflater.needsInput() && !inflater.finished()) {
+                    throw new DataFormatException("Payload is truncated.");
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Splits the packed batch to its messages, which are prefixed with varint lengths.
+    public static List<byte[]> unpack(byte[] packed) throws DataFormatException {
+        final List<byte[]> messages = new ArrayList<>();
+        int pos = 0;
+        while (pos < packed.length) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos == packed.length || shift > 28) {
+                    throw new DataFormatException("Bad length of message: " + messages.size());
+                }
+                final int b = packed[pos++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length < 0 || length > packed.length - pos) {
+                throw new DataFormatException("Message is truncated: " + messages.size());
+            }
+            final byte[] message = new byte[length];
+            System.arraycopy(packed, pos, message, 0, length);
+            messages.add(message);
+            pos += length;
+        }
+        return messages;
+    }
+
+    private static long adler(byte[] bytes) {
+        final Adler32 adler = new Adler32();
+        adler.update(bytes);
+        return adler.getValue();
+    }
+}
@@ -5,16 +5,28 @@ import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.StrictMode;
+import android.support.annotation.Nullable;
 
+import monik.common.ByteArrayBuilder;
 import monik.common.Checks;
+import monik.common.CircuitBreaker;
 import monik.common.Logger;
 import monik.common.RetryException;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Publisher {
 
@@ -23,14 +35,26 @@ public final class Publisher {
     public static final class Params implements Parcelable {
 
         private static final class BundleKeys {
-            private static final String URI                  = "uri";
-            private static final String HOST                 = "host";
-            private static final String PORT                 = "port";
-            private static final String USE_SSL              = "useSsl";
-            private static final String USER                 = "user";
-            private static final String PASSWORD             = "password";
-            private static final String EXCHANGE             = "exchange";
-            private static final String TIMEOUT_MILLISECONDS = "timeoutMilliseconds";
+            private static final String URI                       = "uri";
+            private static final String HOST                      = "host";
+            private static final String PORT                      = "port";
+            private static final String USE_SSL                   = "useSsl";
+            private static final String USER                      = "user";
+            private static final String PASSWORD                  = "password";
+            private static final String EXCHANGE                  = "exchange";
+            private static final String TIMEOUT_MILLISECONDS      = "timeoutMilliseconds";
+            private static final String BATCH_MAX_COUNT           = "batchMaxCount";
+            private static final String BATCH_MAX_BYTES           = "batchMaxBytes";
+            private static final String BATCH_LINGER_MILLISECONDS = "batchLingerMilliseconds";
+            private static final String BATCH_PACKED              = "batchPacked";
+            private static final String CONFIRMS                  = "confirms";
+            private static final String CONFIRM_WINDOW            = "confirmWindow";
+            private static final String CHANNELS                  = "channels";
+            private static final String CONNECTIONS               = "connections";
+            private static final String STRIPE_BY_KEY             = "stripeByKey";
+            private static final String BACKOFF_MIN_MILLISECONDS  = "backoffMinMilliseconds";
+            private static final String BACKOFF_MAX_MILLISECONDS  = "backoffMaxMilliseconds";
+            private static final String COMPRESSED                = "compressed";
         }
 
         public String uri;
@@ -41,42 +65,103 @@ public final class Publisher {
         public String password;
         public String exchange;
         public int timeoutMilliseconds = 10000;
+        // Messages are published by batches, which are flushed as soon as any of the limits is reached.
+        // The batch of one message disables batching.
+        public int batchMaxCount = 64;
+        public int batchMaxBytes = 256 * 1024;
+        public int batchLingerMilliseconds = 200;
+        // Packs the batch to one message of length delimited messages (varint length prefixes, as protobuf
+        // writeDelimitedTo writes them), instead of publishing its messages one by one.
+        public boolean batchPacked = false;
+        // Messages are published to the confirm channel, and are sent again unless the broker confirms them.
+        // Up to the window of messages are published while they are not confirmed yet.
+        public boolean confirms = false;
+        public int confirmWindow = 1024;
+        // Messages are striped over the channels, which are spread over the connections. Every channel has its own
+        // batch and confirm window, and keeps order of its messages, except ones sent again. Batches are striped
+        // round robin, or messages are striped by their keys, e.g. hashes of log tags, so messages of the same key
+        // keep order.
+        public int channels = 1;
+        public int connections = 1;
+        public boolean stripeByKey = false;
+        // Reconnects are delayed by the backoff, which is doubled by consecutive failures of the connection
+        // up to the max, and is jittered. Messages are not sent to the connection while the backoff lasts.
+        public int backoffMinMilliseconds = 1000;
+        public int backoffMaxMilliseconds = 60000;
+        // Payloads are compressed by PayloadCodec, and are published with its content encoding.
+        public boolean compressed = false;
 
         public Params() {
         }
 
         public Params(Bundle bundle) {
-            uri                 = bundle.getString (BundleKeys.URI                  , uri);
-            host                = bundle.getString (BundleKeys.HOST                 , host);
-            port                = bundle.getInt    (BundleKeys.PORT                 , port);
-            useSsl              = bundle.getBoolean(BundleKeys.USE_SSL              , useSsl);
-            user                = bundle.getString (BundleKeys.USER                 , user);
-            password            = bundle.getString (BundleKeys.PASSWORD             , password);
-            exchange            = bundle.getString (BundleKeys.EXCHANGE             , exchange);
-            timeoutMilliseconds = bundle.getInt    (BundleKeys.TIMEOUT_MILLISECONDS , timeoutMilliseconds);
+            uri                     = bundle.getString (BundleKeys.URI                      , uri);
+            host                    = bundle.getString (BundleKeys.HOST                     , host);
+            port                    = bundle.getInt    (BundleKeys.PORT                     , port);
+            useSsl                  = bundle.getBoolean(BundleKeys.USE_SSL                  , useSsl);
+            user                    = bundle.getString (BundleKeys.USER                     , user);
+            password                = bundle.getString (BundleKeys.PASSWORD                 , password);
+            exchange                = bundle.getString (BundleKeys.EXCHANGE                 , exchange);
+            timeoutMilliseconds     = bundle.getInt    (BundleKeys.TIMEOUT_MILLISECONDS     , timeoutMilliseconds);
+            batchMaxCount           = bundle.getInt    (BundleKeys.BATCH_MAX_COUNT          , batchMaxCount);
+            batchMaxBytes           = bundle.getInt    (BundleKeys.BATCH_MAX_BYTES          , batchMaxBytes);
+            batchLingerMilliseconds = bundle.getInt    (BundleKeys.BATCH_LINGER_MILLISECONDS, batchLingerMilliseconds);
+            batchPacked             = bundle.getBoolean(BundleKeys.BATCH_PACKED             , batchPacked);
+            confirms                = bundle.getBoolean(BundleKeys.CONFIRMS                 , confirms);
+            confirmWindow           = bundle.getInt    (BundleKeys.CONFIRM_WINDOW           , confirmWindow);
+            channels                = bundle.getInt    (BundleKeys.CHANNELS                 , channels);
+            connections             = bundle.getInt    (BundleKeys.CONNECTIONS              , connections);
+            stripeByKey             = bundle.getBoolean(BundleKeys.STRIPE_BY_KEY            , stripeByKey);
+            backoffMinMilliseconds  = bundle.getInt    (BundleKeys.BACKOFF_MIN_MILLISECONDS , backoffMinMilliseconds);
+            backoffMaxMilliseconds  = bundle.getInt    (BundleKeys.BACKOFF_MAX_MILLISECONDS , backoffMaxMilliseconds);
+            compressed              = bundle.getBoolean(BundleKeys.COMPRESSED               , compressed);
         }
 
         public Params(Parcel in) {
-            uri                 = in.readString();
-            host                = in.readString();
-            port                = in.readInt();
-            useSsl              = in.readByte() != 0;
-            user                = in.readString();
-            password            = in.readString();
-            exchange            = in.readString();
-            timeoutMilliseconds = in.readInt();
+            uri                     = in.readString();
+            host                    = in.readString();
+            port                    = in.readInt();
+            useSsl                  = in.readByte() != 0;
+            user                    = in.readString();
+            password                = in.readString();
+            exchange                = in.readString();
+            timeoutMilliseconds     = in.readInt();
+            batchMaxCount           = in.readInt();
+            batchMaxBytes           = in.readInt();
+            batchLingerMilliseconds = in.readInt();
+            batchPacked             = in.readByte() != 0;
+            confirms                = in.readByte() != 0;
+            confirmWindow           = in.readInt();
+            channels                = in.readInt();
+            connections             = in.readInt();
+            stripeByKey             = in.readByte() != 0;
+            backoffMinMilliseconds  = in.readInt();
+            backoffMaxMilliseconds  = in.readInt();
+            compressed              = in.readByte() != 0;
         }
 
         public Bundle toBundle() {
             final Bundle bundle = new Bundle();
-            bundle.putString (BundleKeys.URI                  , uri);
-            bundle.putString (BundleKeys.HOST                 , host);
-            bundle.putInt    (BundleKeys.PORT                 , port);
-            bundle.putBoolean(BundleKeys.USE_SSL              , useSsl);
-            bundle.putString (BundleKeys.USER                 , user);
-            bundle.putString (BundleKeys.PASSWORD             , password);
-            bundle.putString (BundleKeys.EXCHANGE             , exchange);
-            bundle.putInt    (BundleKeys.TIMEOUT_MILLISECONDS , timeoutMilliseconds);
+            bundle.putString (BundleKeys.URI                      , uri);
+            bundle.putString (BundleKeys.HOST                     , host);
+            bundle.putInt    (BundleKeys.PORT                     , port);
+            bundle.putBoolean(BundleKeys.USE_SSL                  , useSsl);
+            bundle.putString (BundleKeys.USER                     , user);
+            bundle.putString (BundleKeys.PASSWORD                 , password);
+            bundle.putString (BundleKeys.EXCHANGE                 , exchange);
+            bundle.putInt    (BundleKeys.TIMEOUT_MILLISECONDS     , timeoutMilliseconds);
+            bundle.putInt    (BundleKeys.BATCH_MAX_COUNT          , batchMaxCount);
+            bundle.putInt    (BundleKeys.BATCH_MAX_BYTES          , batchMaxBytes);
+            bundle.putInt    (BundleKeys.BATCH_LINGER_MILLISECONDS, batchLingerMilliseconds);
+            bundle.putBoolean(BundleKeys.BATCH_PACKED             , batchPacked);
+            bundle.putBoolean(BundleKeys.CONFIRMS                 , confirms);
+            bundle.putInt    (BundleKeys.CONFIRM_WINDOW           , confirmWindow);
+            bundle.putInt    (BundleKeys.CHANNELS                 , channels);
+            bundle.putInt    (BundleKeys.CONNECTIONS              , connections);
+            bundle.putBoolean(BundleKeys.STRIPE_BY_KEY            , stripeByKey);
+            bundle.putInt    (BundleKeys.BACKOFF_MIN_MILLISECONDS , backoffMinMilliseconds);
+            bundle.putInt    (BundleKeys.BACKOFF_MAX_MILLISECONDS , backoffMaxMilliseconds);
+            bundle.putBoolean(BundleKeys.COMPRESSED               , compressed);
             return bundle;
         }
 
@@ -89,8 +174,19 @@ public final class Publisher {
             out.writeString(user);
             out.writeString(password);
             out.writeString(exchange);
-            out.writeString(exchange);
             out.writeInt(timeoutMilliseconds);
+            out.writeInt(batchMaxCount);
+            out.writeInt(batchMaxBytes);
+            out.writeInt(batchLingerMilliseconds);
+            out.writeByte((byte)(batchPacked ? 1 : 0));
+            out.writeByte((byte)(confirms ? 1 : 0));
+            out.writeInt(confirmWindow);
+            out.writeInt(channels);
+            out.writeInt(connections);
+            out.writeByte((byte)(stripeByKey ? 1 : 0));
+            out.writeInt(backoffMinMilliseconds);
+            out.writeInt(backoffMaxMilliseconds);
+            out.writeByte((byte)(compressed ? 1 : 0));
         }
 
         @Override
@@ -119,21 +215,406 @@ public final class Publisher {
             sb.append("; password=" + password);
             sb.append("; exchange=" + exchange);
             sb.append("; timeoutMilliseconds=" + timeoutMilliseconds);
+            sb.append("; batchMaxCount=" + batchMaxCount);
+            sb.append("; batchMaxBytes=" + batchMaxBytes);
+            sb.append("; batchLingerMilliseconds=" + batchLingerMilliseconds);
+            sb.append("; batchPacked=" + batchPacked);
+            sb.append("; confirms=" + confirms);
+            sb.append("; confirmWindow=" + confirmWindow);
+            sb.append("; channels=" + channels);
+            sb.append("; connections=" + connections);
+            sb.append("; stripeByKey=" + stripeByKey);
+            sb.append("; backoffMinMilliseconds=" + backoffMinMilliseconds);
+            sb.append("; backoffMaxMilliseconds=" + backoffMaxMilliseconds);
+            sb.append("; compressed=" + compressed);
             return sb.toString();
         }
     }
 
+    // The message is kept since it is taken till it is confirmed by the broker, or is published if confirms
+    // are disabled. Messages of the packed batch are published and are confirmed together.
+    private static final class Message {
+
+        final long id;
+        final byte[] data;
+        final long mark;
+
+        Message(long id, byte[] data, long mark) {
+            this.id = id;
+            this.data = data;
+            this.mark = mark;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Channel with its own batch and confirms. Messages of the stripe are sent in the order they are taken.
+    private final class Stripe {
+
+        private final int mIndex;
+        private final Object mSync = new Object();
+        private volatile Channel mChannel;
+
+        // Messages are sent by one thread at a time in the order they are taken.
+        private final Object mSendSync = new Object();
+        private final List<Message> mBatch = new ArrayList<>();
+        private final ByteArrayBuilder mPackedBatch = new ByteArrayBuilder(1024);
+        private final PayloadCodec mCodec = mParams.compressed ? new PayloadCodec() : null;
+        private int mBatchBytes;
+        private int mBatchPublished;
+        private long mBatchDate;
+        private long mNextId;
+
+        // Messages, which are not confirmed yet, by ids. Sent messages are kept by publish sequence numbers
+        // of the confirm channel till they are confirmed, nacked or the channel is lost, then they are sent again.
+        private final Object mConfirmSync = new Object();
+        private final TreeMap<Long, Message> mUnconfirmed = new TreeMap<>();
+        private final TreeMap<Long, Message[]> mInFlight = new TreeMap<>();
+        private final TreeMap<Long, Message[]> mResent = new TreeMap<>();
+        private Channel mConfirmChannel;
+
+        Stripe(int index) {
+            mIndex = index;
+        }
+
+        // Returns true if the batch, which the message is added to, is flushed or is failed to be flushed.
+        boolean publish(byte[] data, long mark) {
+            synchronized (mSendSync) {
+                if (hasResent() || (!mBatch.isEmpty() && (mBatch.size() >= mParams.batchMaxCount
+                        || mBatchBytes + data.length > mParams.batchMaxBytes))) {
+                    flush();
+                }
+                final Message message = new Message(mNextId++, data, mark);
+                synchronized (mConfirmSync) {
+                    mUnconfirmed.put(message.id, message);
+                }
+                if (mBatch.isEmpty()) {
+                    mBatchDate = System.currentTimeMillis();
+                }
+                mBatch.add(message);
+                mBatchBytes += data.length;
+                if (mBatch.size() >= mParams.batchMaxCount
+                        || mBatchBytes >= mParams.batchMaxBytes
+                        || System.currentTimeMillis() - mBatchDate >= mParams.batchLingerMilliseconds) {
+                    try {
+                        flush();
+                    } catch (RetryException e) {
+                        // The message is taken already, so it is sent again later.
+                        mLogger.e(LOG_TAG, "Failed to flush batch.", e);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        long flushLingered() {
+            synchronized (mSendSync) {
+                if (mBatch.isEmpty() && !hasResent()) {
+                    return -1;
+                }
+                final long remaining = mBatchDate + mParams.batchLingerMilliseconds - System.currentTimeMillis();
+                if (!mBatch.isEmpty() && remaining > 0 && !hasResent()) {
+                    return remaining;
+                }
+                try {
+                    flush();
+                } catch (RetryException e) {
+                    mLogger.e(LOG_TAG, "Failed to flush batch.", e);
+                    return e.getMinTimeoutMilliseconds();
+                }
+                return -1;
+            }
+        }
+
+        @Nullable Message getOldestUnconfirmed() {
+            synchronized (mConfirmSync) {
+                return mUnconfirmed.isEmpty() ? null : mUnconfirmed.firstEntry().getValue();
+            }
+        }
+
+        // Sends messages to be sent again, then the batch. The connection is not tried while its circuit is open.
+        private void flush() {
+            final CircuitBreaker circuitBreaker = mCircuitBreakers[mIndex % mConnections.length];
+            final long timeout = circuitBreaker.checkAttempt();
+            if (timeout > 0) {
+                throw new RetryException(timeout, "Connection is backed off.");
+            }
+            try {
+                final Channel channel = ensureConnected();
+                while (true) {
+                    Message[] messages = null;
+                    synchronized (mConfirmSync) {
+                        if (!mResent.isEmpty()) {
+                            messages = mResent.pollFirstEntry().getValue();
+                        }
+                    }
+                    if (messages == null) {
+                        break;
+                    }
+                    try {
+                        send(channel, messages.length == 1 && !mParams.batchPacked ? messages[0].data : pack(messages), messages);
+                    } catch (Exception e) {
+                        synchronized (mConfirmSync) {
+                            mResent.put(messages[0].id, messages);
+                        }
+                        throw e;
+                    }
+                }
+                if (mParams.batchPacked) {
+                    if (!mBatch.isEmpty()) {
+                        final Message[] messages = mBatch.toArray(new Message[mBatch.size()]);
+                        send(channel, pack(messages), messages);
+                    }
+                } else {
+                    for (; mBatchPublished < mBatch.size(); ++mBatchPublished) {
+                        final Message message = mBatch.get(mBatchPublished);
+                        send(channel, message.data, new Message[] { message });
+                    }
+                }
+            } catch (ClosedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                reset();
+                throw new RetryException(circuitBreaker.onFailure(), "Failed to publish batch.", e);
+            }
+            circuitBreaker.onSuccess();
+            mBatch.clear();
+            mBatchBytes = 0;
+            mBatchPublished = 0;
+        }
+
+        private void send(Channel channel, byte[] data, Message[] messages)
+                throws IOException, TimeoutException, InterruptedException {
+            if (mCodec != null) {
+                data = mCodec.encode(data);
+            }
+            if (!mParams.confirms) {
+                channel.basicPublish(mParams.exchange, "", mProperties, data);
+                synchronized (mConfirmSync) {
+                    for (final Message message : messages) {
+                        mUnconfirmed.remove(message.id);
+                    }
+                }
+                return;
+            }
+            synchronized (mConfirmSync) {
+                final long endTime = System.currentTimeMillis() + mParams.timeoutMilliseconds;
+                while (mInFlight.size() >= mParams.confirmWindow) {
+                    final long remaining = endTime - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("Messages are not confirmed.");
+                    }
+                    mConfirmSync.wait(remaining);
+                }
+                // Messages of the lost channel are sent again.
+                if (channel != mConfirmChannel) {
+                    throw new IOException("Channel is lost.");
+                }
+                mInFlight.put(channel.getNextPublishSeqNo(), messages);
+            }
+            try {
+                channel.basicPublish(mParams.exchange, "", mProperties, data);
+            } catch (IOException | RuntimeException e) {
+                // The messages are not sent, they are kept by the caller.
+                synchronized (mConfirmSync) {
+                    mInFlight.values().remove(messages);
+                    mResent.remove(messages[0].id);
+                }
+                throw e;
+            }
+        }
+
+        private boolean hasResent() {
+            synchronized (mConfirmSync) {
+                return !mResent.isEmpty();
+            }
+        }
+
+        private byte[] pack(Message[] messages) {
+            final ByteArrayBuilder packed = mPackedBatch;
+            packed.setLength(0);
+            for (final Message message : messages) {
+                int length = message.data.length;
+                while ((length & ~0x7F) != 0) {
+                    packed.append((length & 0x7F) | 0x80);
+                    length >>>= 7;
+                }
+                packed.append(length);
+                packed.append(message.data);
+            }
+            return packed.toByteArray();
+        }
+
+        private void onConfirm(Channel channel, long sequenceNumber, boolean multiple, boolean ack) {
+            synchronized (mConfirmSync) {
+                if (channel != mConfirmChannel) {
+                    // The channel is lost, its messages are sent again.
+                    return;
+                }
+                final Map<Long, Message[]> confirmed = multiple
+                        ? mInFlight.headMap(sequenceNumber, true)
+                        : mInFlight.subMap(sequenceNumber, true, sequenceNumber, true);
+                for (final Message[] messages : confirmed.values()) {
+                    if (ack) {
+                        for (final Message message : messages) {
+                            mUnconfirmed.remove(message.id);
+                        }
+                    } else {
+                        mResent.put(messages[0].id, messages);
+                    }
+                }
+                confirmed.clear();
+                mConfirmSync.notifyAll();
+            }
+            if (!ack) {
+                mLogger.w(LOG_TAG, "Messages are nacked, they are sent again: " + sequenceNumber);
+            }
+        }
+
+        // Called when the channel is lost: messages, which are not confirmed yet, are sent again.
+        private void resendInFlight() {
+            synchronized (mConfirmSync) {
+                for (final Message[] messages : mInFlight.values()) {
+                    mResent.put(messages[0].id, messages);
+                }
+                mInFlight.clear();
+                mConfirmChannel = null;
+                mConfirmSync.notifyAll();
+            }
+        }
+
+        // Drops the channel, and closes its connection, so channels of other stripes are reconnected too.
+        private void reset() {
+            final Channel channel = dropChannel();
+            if (channel != null) {
+                closeConnection(mIndex % mConnections.length, channel.getConnection());
+            }
+        }
+
+        private @Nullable Channel dropChannel() {
+            synchronized (mSync) {
+                final Channel channel = mChannel;
+                mChannel = null;
+                if (channel != null) {
+                    resendInFlight();
+                }
+                return channel;
+            }
+        }
+
+        private void flushBatch() {
+            synchronized (mSendSync) {
+                if ((!mBatch.isEmpty() || hasResent()) && mChannel != null) {
+                    try {
+                        flush();
+                    } catch (RetryException e) {
+                        mLogger.e(LOG_TAG, "Failed to flush batch on close.", e);
+                    }
+                }
+            }
+        }
+
+        private void closeCodec() {
+            synchronized (mSendSync) {
+                if (mCodec != null) {
+                    mCodec.close();
+                }
+            }
+        }
+
+        // Returns the count of messages, which are not confirmed till the end time.
+        private int closeBatch(long endTime) {
+            synchronized (mSendSync) {
+                int unconfirmed = 0;
+                synchronized (mConfirmSync) {
+                    try {
+                        long remaining = endTime - System.currentTimeMillis();
+                        while (!mInFlight.isEmpty() && remaining > 0) {
+                            mConfirmSync.wait(remaining);
+                            remaining = endTime - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    // Unconfirmed messages are kept for getUnconfirmedMark.
+                    unconfirmed = mUnconfirmed.size();
+                    mInFlight.clear();
+                    mResent.clear();
+                }
+                mBatch.clear();
+                mBatchBytes = 0;
+                mBatchPublished = 0;
+                return unconfirmed;
+            }
+        }
+
+        private Channel ensureConnected() throws IOException, TimeoutException {
+            synchronized (mSync) {
+                if (mClosed) {
+                    throw new ClosedException();
+                }
+                if (mChannel == null) {
+                    final Channel channel = getConnection(mIndex % mConnections.length).createChannel();
+                    if (mParams.confirms) {
+                        channel.confirmSelect();
+                        channel.addConfirmListener(new ConfirmListener() {
+                            @Override
+                            public void handleAck(long deliveryTag, boolean multiple) {
+                                onConfirm(channel, deliveryTag, multiple, true);
+                            }
+
+                            @Override
+                            public void handleNack(long deliveryTag, boolean multiple) {
+                                onConfirm(channel, deliveryTag, multiple, false);
+                            }
+                        });
+                        channel.addShutdownListener(new ShutdownListener() {
+                            @Override
+                            public void shutdownCompleted(ShutdownSignalException cause) {
+                                synchronized (mSync) {
+                                    if (mChannel == channel) {
+                                        mChannel = null;
+                                        resendInFlight();
+                                    }
+                                }
+                            }
+                        });
+                        synchronized (mConfirmSync) {
+                            mConfirmChannel = channel;
+                        }
+                    }
+                    mChannel = channel;
+                }
+                return mChannel;
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
     private final Object mSync = new Object();
     private final Logger mLogger;
     private final Params mParams;
     private final ConnectionFactory mConnectionFactory;
     private volatile boolean mClosed = false;
-    private volatile Channel mChannel;
+    private final Connection[] mConnections;
+    private final CircuitBreaker[] mCircuitBreakers;
+    private final AMQP.BasicProperties mProperties;
+    private final Stripe[] mStripes;
+    // The stripe of the next batch, if batches are striped round robin.
+    private final AtomicInteger mNextStripe = new AtomicInteger();
 
     public Publisher(Logger logger, Params params) {
         mLogger = Checks.checkArgNotNull(logger, "logger");
         mParams = Checks.checkArgNotNull(params, "params");
         mLogger.i(LOG_TAG, "Params: " + mParams.toString());
+        if (mParams.channels <= 0 || mParams.connections <= 0 || mParams.connections > mParams.channels) {
+            throw new IllegalArgumentException("Bad channels (" + mParams.channels + ") or connections (" + mParams.connections + ").");
+        }
 
         mConnectionFactory = new ConnectionFactory();
         if (mParams.uri != null) {
@@ -157,63 +638,164 @@ public final class Publisher {
         }
         mConnectionFactory.setConnectionTimeout(mParams.timeoutMilliseconds);
         mConnectionFactory.setAutomaticRecoveryEnabled(false);
+
+        mProperties = mParams.compressed
+                ? new AMQP.BasicProperties.Builder().contentEncoding(PayloadCodec.DEFLATE_ENCODING).build()
+                : null;
+        mConnections = new Connection[mParams.connections];
+        mCircuitBreakers = new CircuitBreaker[mParams.connections];
+        for (int i = 0; i < mCircuitBreakers.length; ++i) {
+            mCircuitBreakers[i] = new CircuitBreaker(
+                    mParams.backoffMinMilliseconds,
+                    mParams.backoffMaxMilliseconds,
+                    mParams.timeoutMilliseconds);
+        }
+        mStripes = new Stripe[mParams.channels];
+        for (int i = 0; i < mStripes.length; ++i) {
+            mStripes[i] = new Stripe(i);
+        }
     }
 
     public final void publish(byte[] data) {
+        publish(data, 0);
+    }
+
+    public final void publish(byte[] data, long mark) {
+        publish(data, mark, 0);
+    }
+
+    // The message is published at once if batching is disabled, or is added to the batch of its stripe.
+    // The key selects the stripe if messages are striped by keys, otherwise it is ignored.
+    // The mark is kept with the message till it is confirmed, e.g. the date of the log: marks are expected not to
+    // decrease. RetryException is thrown if the message is not taken: the batch is full or there are messages to be
+    // sent again, and they are not sent.
+    public final void publish(byte[] data, long mark, int key) {
         Checks.checkArgNotNull(data, "data");
+        if (mParams.stripeByKey) {
+            final int hash = key ^ (key >>> 16);
+            mStripes[(hash & Integer.MAX_VALUE) % mStripes.length].publish(data, mark);
+            return;
+        }
+        final int index = mNextStripe.get();
+        boolean next = false;
         try {
-            final Channel channel = ensureConnected();
-            channel.basicPublish(mParams.exchange, "", null, data);
-        } catch (ClosedException e) {
+            next = mStripes[index].publish(data, mark);
+        } catch (RetryException e) {
+            // The message is retried with the next stripe.
+            next = true;
             throw e;
-        } catch (Exception e) {
-            close(false);
-            throw new RetryException(mParams.timeoutMilliseconds, "Failed to publish data.", e);
+        } finally {
+            if (next) {
+                mNextStripe.compareAndSet(index, (index + 1) % mStripes.length);
+            }
         }
     }
 
-    public final void close() {
-        close(true);
+    // Flushes batches, which have lingered for the linger time, and sends nacked messages again.
+    // Returns milliseconds, after which it is to be called again, or -1 if there is nothing to send.
+    public final long flushLingered() {
+        long timeout = -1;
+        for (final Stripe stripe : mStripes) {
+            final long stripeTimeout = stripe.flushLingered();
+            if (stripeTimeout >= 0 && (timeout < 0 || stripeTimeout < timeout)) {
+                timeout = stripeTimeout;
+            }
+        }
+        return timeout;
     }
 
-    private void close(boolean forever) {
-        Connection connection = null;
-        synchronized (mSync) {
-            mClosed |= forever;
-            if (mChannel != null) {
-                connection = mChannel.getConnection();
-                mChannel = null;
+    // Returns the mark of the oldest message, which is not confirmed yet (or is not published if confirms
+    // are disabled), or the default mark if there are no such messages. Logs are to be published again since
+    // this mark after restart.
+    public final long getUnconfirmedMark(long defaultMark) {
+        Message oldest = null;
+        for (final Stripe stripe : mStripes) {
+            final Message message = stripe.getOldestUnconfirmed();
+            if (message != null && (oldest == null || message.mark < oldest.mark)) {
+                oldest = message;
             }
         }
-        if (connection != null) {
-            try {
-                if (Looper.getMainLooper().getThread() != Thread.currentThread()) {
-                    connection.close(mParams.timeoutMilliseconds);
-                } else {
-                    StrictMode.ThreadPolicy oldPolicy = StrictMode.getThreadPolicy();
-                    try {
-                        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder(oldPolicy).permitNetwork().build());
-                        connection.close(mParams.timeoutMilliseconds);
-                    } finally {
-                        StrictMode.setThreadPolicy(oldPolicy);
-                    }
+        return oldest != null ? oldest.mark : defaultMark;
+    }
+
+    // Batches are flushed before connections are closed, and sent messages are waited to be confirmed.
+    public final void close() {
+        runPermittingNetwork(new Runnable() {
+            @Override
+            public void run() {
+                for (final Stripe stripe : mStripes) {
+                    stripe.flushBatch();
+                }
+                final long endTime = System.currentTimeMillis() + mParams.timeoutMilliseconds;
+                int unconfirmed = 0;
+                for (final Stripe stripe : mStripes) {
+                    unconfirmed += stripe.closeBatch(endTime);
+                }
+                if (unconfirmed > 0) {
+                    mLogger.w(LOG_TAG, "Messages not confirmed on close: " + unconfirmed);
                 }
-            } catch (Exception e) {
-                mLogger.e(LOG_TAG, "Failed to close connection.", e);
+            }
+        });
+        final Connection[] connections = new Connection[mConnections.length];
+        synchronized (mSync) {
+            mClosed = true;
+            System.arraycopy(mConnections, 0, connections, 0, connections.length);
+        }
+        for (final Stripe stripe : mStripes) {
+            stripe.dropChannel();
+            stripe.closeCodec();
+        }
+        for (int i = 0; i < connections.length; ++i) {
+            if (connections[i] != null) {
+                closeConnection(i, connections[i]);
             }
         }
     }
 
-    private Channel ensureConnected() throws IOException, TimeoutException {
+    private Connection getConnection(int index) throws IOException, TimeoutException {
         synchronized (mSync) {
             if (mClosed) {
-                throw new IllegalStateException("Publisher is closed.");
+                throw new ClosedException();
             }
-            if (mChannel == null) {
-                final Connection connection = mConnectionFactory.newConnection();
-                mChannel = connection.createChannel();
+            if (mConnections[index] == null || !mConnections[index].isOpen()) {
+                mConnections[index] = mConnectionFactory.newConnection();
+            }
+            return mConnections[index];
+        }
+    }
+
+    private void closeConnection(int index, final Connection connection) {
+        synchronized (mSync) {
+            if (mConnections[index] != connection) {
+                // The connection is closed by another stripe.
+                return;
             }
-            return mChannel;
+            mConnections[index] = null;
+        }
+        runPermittingNetwork(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.close(mParams.timeoutMilliseconds);
+                } catch (Exception e) {
+                    mLogger.e(LOG_TAG, "Failed to close connection.", e);
+                }
+            }
+        });
+    }
+
+    // Network is not allowed on the main thread, but closing is done there.
+    private static void runPermittingNetwork(Runnable runnable) {
+        if (Looper.getMainLooper().getThread() != Thread.currentThread()) {
+            runnable.run();
+            return;
+        }
+        StrictMode.ThreadPolicy oldPolicy = StrictMode.getThreadPolicy();
+        try {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder(oldPolicy).permitNetwork().build());
+            runnable.run();
+        } finally {
+            StrictMode.setThreadPolicy(oldPolicy);
         }
     }
 
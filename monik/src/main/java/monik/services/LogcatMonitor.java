@@ -7,9 +7,17 @@ import android.os.IBinder;
 import monik.common.AndroidLoggers;
 import monik.common.Checks;
 import monik.common.Logger;
+import monik.common.RetryException;
 import monik.logs.LogConsumer;
+import monik.logs.LogDeduplicator;
 import monik.logs.LogEntry;
+import monik.logs.LogFilter;
+import monik.logs.LogQueue;
+import monik.logs.LogRateLimiter;
 import monik.logs.LogSource;
+import monik.logs.logcat.LogcatBinaryLogSource;
+import monik.logs.logcat.LogcatFilterSpec;
+import monik.logs.logcat.LogcatFormat;
 import monik.logs.logcat.LogcatLogSource;
 
 public abstract class LogcatMonitor extends Service {
@@ -20,15 +28,72 @@ public abstract class LogcatMonitor extends Service {
     private static final String EXTRA_LOGCAT_FILTER = "EXTRA_LOGCAT_FILTER";
     private static final String DEFAULT_LOGCAT_FILTER = "*:I";
 
+    private static final String EXTRA_LOGCAT_FILTER_SPEC = "EXTRA_LOGCAT_FILTER_SPEC";
+
     private static final String EXTRA_PIDTID_FILTER = "EXTRA_PIDTID_FILTER";
     private static final LogcatLogSource.PidTidFilter DEFAULT_PIDTID_FILTER = LogcatLogSource.PidTidFilter.Pid;
 
+    private static final String EXTRA_READ_MODE = "EXTRA_READ_MODE";
+    private static final LogcatLogSource.ReadMode DEFAULT_READ_MODE = LogcatLogSource.ReadMode.Blocking;
+
+    private static final String EXTRA_LOGCAT_BUFFERS = "EXTRA_LOGCAT_BUFFERS";
+    private static final String[] DEFAULT_LOGCAT_BUFFERS = { LogcatLogSource.Buffers.MAIN };
+
+    private static final String EXTRA_LOGCAT_FORMAT = "EXTRA_LOGCAT_FORMAT";
+    // Logs of the single line format end at line boundaries, so the blocking read flushes them without waits.
+    private static final LogcatFormat DEFAULT_LOGCAT_FORMAT = LogcatFormat.ThreadTime;
+
+    // Logs read while the publishing thread is busy are queued up to this count, then the overflow policy is applied.
+    private static final String EXTRA_LOG_QUEUE_CAPACITY = "EXTRA_LOG_QUEUE_CAPACITY";
+    private static final int DEFAULT_LOG_QUEUE_CAPACITY = 1024;
+
+    private static final String EXTRA_OVERFLOW_POLICY = "EXTRA_OVERFLOW_POLICY";
+    private static final LogQueue.OverflowPolicy DEFAULT_OVERFLOW_POLICY = LogQueue.OverflowPolicy.Block;
+
+    // Logs with the same tag, severity and text as a log within this window are collapsed to a summary
+    // of their count. Zero disables deduplication.
+    private static final String EXTRA_DEDUP_WINDOW_MILLISECONDS = "EXTRA_DEDUP_WINDOW_MILLISECONDS";
+    private static final long DEFAULT_DEDUP_WINDOW_MILLISECONDS = 0;
+    private static final int DEDUP_CAPACITY = 256;
+
+    // Limits of logs per minute by ordinals of severities, per tag and per pid, see LogRateLimiter.
+    // There are no limits by default.
+    private static final String EXTRA_TAG_RATE_LIMITS = "EXTRA_TAG_RATE_LIMITS";
+    private static final String EXTRA_PID_RATE_LIMITS = "EXTRA_PID_RATE_LIMITS";
+    private static final int RATE_LIMIT_CAPACITY = 256;
+
     private Logger mLogger;
     private LogConsumer mLogConsumer;
+    private LogFilter mHeaderFilter;
+    private LogDeduplicator mDeduplicator;
+    private LogRateLimiter mRateLimiter;
+    private LogQueue mLogQueue;
     private LogSource mLogSource;
+    private int mLogcatBufferCount;
 
+    // Called on the publishing thread, so reading of logs goes on while the call is slow or is retried.
+    // UTF-8 bytes of the log are valid during the call only: they are reused as soon as it returns.
     protected abstract void onLogEntry(LogEntry logEntry);
 
+    // Called on the publishing thread when there are no logs to publish, e.g. to flush batched logs.
+    // Returns milliseconds, after which it is to be called again if there are still no logs, or -1.
+    protected long onIdle() {
+        return -1;
+    }
+
+    // Called on the reading thread for logs with header fields only: date, pid, tid, severity, tag and buffer.
+    // Texts of rejected logs are skipped without assembling, so rejecting here is much cheaper than in onLogEntry.
+    protected boolean canPassLogHeader(LogEntry logEntry) {
+        return true;
+    }
+
+    // Called after onBeforeStart. Returns the date in milliseconds, since which logs are to be read, e.g. to resume
+    // after restart, or LogcatFilterSpec.ANY_DATE. Logcat starts reading at the date, so it replaces the count of
+    // last logs.
+    protected long getLogcatSinceDate() {
+        return LogcatFilterSpec.ANY_DATE;
+    }
+
     protected void onBeforeStart(Intent intent) {
     }
 
@@ -42,13 +107,30 @@ public abstract class LogcatMonitor extends Service {
         mLogConsumer = new LogConsumer() {
             @Override
             public void consume(LogEntry logEntry) {
-                onLogEntry(logEntry);
+                boolean retry = false;
+                try {
+                    onLogEntry(logEntry);
+                } catch (RetryException e) {
+                    // The log is still owned by the source, which retries it.
+                    retry = true;
+                    throw e;
+                } finally {
+                    if (!retry) {
+                        logEntry.release();
+                    }
+                }
             }
 
             @Override
             public void close() {
             }
         };
+        mHeaderFilter = new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                return canPassLogHeader(logEntry);
+            }
+        };
     }
 
     @Override
@@ -63,14 +145,70 @@ public abstract class LogcatMonitor extends Service {
             return START_REDELIVER_INTENT;
         }
 
+        mLogcatBufferCount = getLogcatBuffers(intent, DEFAULT_LOGCAT_BUFFERS).length;
         onBeforeStart(intent);
-        mLogSource = new LogcatLogSource(
+        // Repeats are collapsed before they take tokens of rate limits.
+        LogConsumer logConsumer = mLogConsumer;
+        final int[] tagRateLimits = getTagRateLimits(intent);
+        final int[] pidRateLimits = getPidRateLimits(intent);
+        if (tagRateLimits != null || pidRateLimits != null) {
+            mRateLimiter = new LogRateLimiter(logConsumer, tagRateLimits, pidRateLimits, RATE_LIMIT_CAPACITY);
+            logConsumer = mRateLimiter;
+        }
+        final long dedupWindow = getDedupWindowMilliseconds(intent, DEFAULT_DEDUP_WINDOW_MILLISECONDS);
+        if (dedupWindow > 0) {
+            mDeduplicator = new LogDeduplicator(logConsumer, dedupWindow, DEDUP_CAPACITY);
+            logConsumer = mDeduplicator;
+        }
+        mLogQueue = new LogQueue(
+                logConsumer,
+                getLogQueueCapacity(intent, DEFAULT_LOG_QUEUE_CAPACITY),
+                getOverflowPolicy(intent, DEFAULT_OVERFLOW_POLICY),
+                mLogger);
+        mLogQueue.setIdleListener(new LogQueue.IdleListener() {
+            @Override
+            public long onIdle() {
+                // Summaries of repeated and limited logs are passed before the idle work, e.g. before batches
+                // are flushed.
+                final long dedupTimeout = mDeduplicator != null ? mDeduplicator.flushExpired() : -1;
+                final long rateLimitTimeout = mRateLimiter != null ? mRateLimiter.flushExpired() : -1;
+                return minTimeout(minTimeout(dedupTimeout, rateLimitTimeout), LogcatMonitor.this.onIdle());
+            }
+        });
+        mLogQueue.start();
+        mLogSource = createLogSource(intent);
+        mLogSource.start(mLogQueue, mHeaderFilter);
+        return START_STICKY;
+    }
+
+    // Timeouts are -1 if there is no timeout.
+    private static long minTimeout(long timeout1, long timeout2) {
+        return timeout1 < 0 || (timeout2 >= 0 && timeout2 < timeout1) ? timeout2 : timeout1;
+    }
+
+    private LogSource createLogSource(Intent intent) {
+        final LogcatFormat format = getLogcatFormat(intent, DEFAULT_LOGCAT_FORMAT);
+        final LogcatFilterSpec filterSpec = getLogcatFilterSpec(intent, DEFAULT_LOGCAT_FILTER);
+        final long sinceDate = getLogcatSinceDate();
+        if (sinceDate > filterSpec.sinceDate) {
+            filterSpec.sinceDate = sinceDate;
+        }
+        if (format == LogcatFormat.Binary) {
+            return new LogcatBinaryLogSource(
+                    getLogcatBuffers(intent, DEFAULT_LOGCAT_BUFFERS),
+                    getLogcatLastLogsCount(intent, DEFAULT_LOGCAT_LAST_LOGS_COUNT),
+                    filterSpec,
+                    getPidTidFilter(intent, DEFAULT_PIDTID_FILTER),
+                    mLogger);
+        }
+        return new LogcatLogSource(
+                getLogcatBuffers(intent, DEFAULT_LOGCAT_BUFFERS),
+                format,
                 getLogcatLastLogsCount(intent, DEFAULT_LOGCAT_LAST_LOGS_COUNT),
-                getLogcatFilter(intent, DEFAULT_LOGCAT_FILTER),
+                filterSpec,
                 getPidTidFilter(intent, DEFAULT_PIDTID_FILTER),
+                getReadMode(intent, DEFAULT_READ_MODE),
                 mLogger);
-                mLogSource.start(mLogConsumer);
-        return START_STICKY;
     }
 
     @Override
@@ -90,6 +228,16 @@ public abstract class LogcatMonitor extends Service {
         return mLogger;
     }
 
+    // Count of logcat buffers, which logs are read from, or 0 if the monitor is not started.
+    protected final int getLogcatBufferCount() {
+        return mLogcatBufferCount;
+    }
+
+    // The queue of logs, which are read but not consumed yet, or null if the monitor is not started.
+    protected final LogQueue getLogQueue() {
+        return mLogQueue;
+    }
+
     public static void setLogcatLastLogsCount(Intent intent, int logcatLastLogsCount) {
         intent.putExtra(EXTRA_LOGCAT_LAST_LOGS_COUNT, logcatLastLogsCount);
     }
@@ -110,13 +258,103 @@ public abstract class LogcatMonitor extends Service {
              : defaultFilter;
     }
 
+    public static void setLogcatFilterSpec(Intent intent, LogcatFilterSpec filterSpec) {
+        Checks.checkArgNotNull(filterSpec, "filterSpec");
+        intent.putExtra(EXTRA_LOGCAT_FILTER_SPEC, filterSpec.toBundle());
+    }
+
+    // Returns the filter spec, or the spec of the logcat filter if there is no filter spec.
+    public static LogcatFilterSpec getLogcatFilterSpec(Intent intent, String defaultFilter) {
+        return intent.hasExtra(EXTRA_LOGCAT_FILTER_SPEC)
+             ? new LogcatFilterSpec(intent.getBundleExtra(EXTRA_LOGCAT_FILTER_SPEC))
+             : new LogcatFilterSpec(getLogcatFilter(intent, defaultFilter));
+    }
+
     public static void setPidTidFilter(Intent intent, LogcatLogSource.PidTidFilter filter) {
         Checks.checkArgNotNull(filter, "filter");
-        intent.putExtra(EXTRA_LOGCAT_FILTER, filter.ordinal());
+        intent.putExtra(EXTRA_PIDTID_FILTER, filter.ordinal());
     }
 
     public static LogcatLogSource.PidTidFilter getPidTidFilter(Intent intent, LogcatLogSource.PidTidFilter defaultFilter) {
         Checks.checkArgNotNull(defaultFilter, "defaultFilter");
         return LogcatLogSource.PidTidFilter.values()[intent.getIntExtra(EXTRA_PIDTID_FILTER, defaultFilter.ordinal())];
     }
+
+    public static void setReadMode(Intent intent, LogcatLogSource.ReadMode readMode) {
+        Checks.checkArgNotNull(readMode, "readMode");
+        intent.putExtra(EXTRA_READ_MODE, readMode.ordinal());
+    }
+
+    public static LogcatLogSource.ReadMode getReadMode(Intent intent, LogcatLogSource.ReadMode defaultReadMode) {
+        Checks.checkArgNotNull(defaultReadMode, "defaultReadMode");
+        return LogcatLogSource.ReadMode.values()[intent.getIntExtra(EXTRA_READ_MODE, defaultReadMode.ordinal())];
+    }
+
+    public static void setLogcatBuffers(Intent intent, String[] buffers) {
+        Checks.checkArgNotNull(buffers, "buffers");
+        intent.putExtra(EXTRA_LOGCAT_BUFFERS, buffers);
+    }
+
+    public static String[] getLogcatBuffers(Intent intent, String[] defaultBuffers) {
+        Checks.checkArgNotNull(defaultBuffers, "defaultBuffers");
+        return intent.hasExtra(EXTRA_LOGCAT_BUFFERS)
+             ? intent.getStringArrayExtra(EXTRA_LOGCAT_BUFFERS)
+             : defaultBuffers;
+    }
+
+    public static void setLogcatFormat(Intent intent, LogcatFormat format) {
+        Checks.checkArgNotNull(format, "format");
+        intent.putExtra(EXTRA_LOGCAT_FORMAT, format.ordinal());
+    }
+
+    public static LogcatFormat getLogcatFormat(Intent intent, LogcatFormat defaultFormat) {
+        Checks.checkArgNotNull(defaultFormat, "defaultFormat");
+        return LogcatFormat.values()[intent.getIntExtra(EXTRA_LOGCAT_FORMAT, defaultFormat.ordinal())];
+    }
+
+    public static void setLogQueueCapacity(Intent intent, int capacity) {
+        intent.putExtra(EXTRA_LOG_QUEUE_CAPACITY, capacity);
+    }
+
+    public static int getLogQueueCapacity(Intent intent, int defaultCapacity) {
+        return intent.getIntExtra(EXTRA_LOG_QUEUE_CAPACITY, defaultCapacity);
+    }
+
+    public static void setOverflowPolicy(Intent intent, LogQueue.OverflowPolicy policy) {
+        Checks.checkArgNotNull(policy, "policy");
+        intent.putExtra(EXTRA_OVERFLOW_POLICY, policy.ordinal());
+    }
+
+    public static LogQueue.OverflowPolicy getOverflowPolicy(Intent intent, LogQueue.OverflowPolicy defaultPolicy) {
+        Checks.checkArgNotNull(defaultPolicy, "defaultPolicy");
+        return LogQueue.OverflowPolicy.values()[intent.getIntExtra(EXTRA_OVERFLOW_POLICY, defaultPolicy.ordinal())];
+    }
+
+    public static void setDedupWindowMilliseconds(Intent intent, long windowMilliseconds) {
+        intent.putExtra(EXTRA_DEDUP_WINDOW_MILLISECONDS, windowMilliseconds);
+    }
+
+    public static long getDedupWindowMilliseconds(Intent intent, long defaultWindowMilliseconds) {
+        return intent.getLongExtra(EXTRA_DEDUP_WINDOW_MILLISECONDS, defaultWindowMilliseconds);
+    }
+
+    public static void setTagRateLimits(Intent intent, int[] limits) {
+        Checks.checkArgNotNull(limits, "limits");
+        intent.putExtra(EXTRA_TAG_RATE_LIMITS, limits);
+    }
+
+    // Returns null if there are no limits.
+    public static int[] getTagRateLimits(Intent intent) {
+        return intent.getIntArrayExtra(EXTRA_TAG_RATE_LIMITS);
+    }
+
+    public static void setPidRateLimits(Intent intent, int[] limits) {
+        Checks.checkArgNotNull(limits, "limits");
+        intent.putExtra(EXTRA_PID_RATE_LIMITS, limits);
+    }
+
+    // Returns null if there are no limits.
+    public static int[] getPidRateLimits(Intent intent) {
+        return intent.getIntArrayExtra(EXTRA_PID_RATE_LIMITS);
+    }
 }
@@ -3,14 +3,37 @@ package monik.services;
 import android.content.Intent;
 
 import monik.common.Checks;
+import monik.common.MappedSpool;
+import monik.common.RetryException;
 import monik.logs.LogEntry;
 import monik.rabbitmq.Publisher;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
 public abstract class LogcatToRabbitMqPublisher extends LogcatMonitor {
 
+    private static final String LOG_TAG = "LogcatToRabbitMqPublisher";
+
     private static final String EXTRA_RABBITMQ_PARAMS = "EXTRA_RABBITMQ_PARAMS";
 
+    // Messages, which are not published while the broker is unreachable, are spooled to files up to this size.
+    private static final String EXTRA_SPOOL_MAX_BYTES = "EXTRA_SPOOL_MAX_BYTES";
+    private static final long DEFAULT_SPOOL_MAX_BYTES = 0;
+
+    private static final String SPOOL_DIR_NAME = "monik-spool";
+    private static final int SPOOL_SEGMENT_SIZE = 1024 * 1024;
+    // Spooled messages are drained by chunks, so new logs are not delayed for long.
+    private static final int SPOOL_DRAIN_COUNT = 256;
+    // Drained messages are removed from the spool, when they are confirmed, which is checked with this period.
+    private static final long SPOOL_COMMIT_PERIOD = 1000;
+
     private Publisher mPublisher;
+    private MappedSpool mSpool;
+    private long mSpoolRetryDate;
+    // Marks and spool positions of drained messages, which are not removed from the spool yet.
+    private final ArrayDeque<long[]> mDrained = new ArrayDeque<>();
 
     protected abstract byte[] logEntryToBytes(LogEntry logEntry);
 
@@ -18,21 +41,127 @@ public abstract class LogcatToRabbitMqPublisher extends LogcatMonitor {
     protected void onBeforeStart(Intent intent) {
         final Publisher.Params rabbitMqParams = Checks.checkArgNotNull(getRabbitMqParams(intent), "rabbitMqParams");
         mPublisher = new Publisher(getLogger(), rabbitMqParams);
+        final long spoolMaxBytes = getSpoolMaxBytes(intent, DEFAULT_SPOOL_MAX_BYTES);
+        if (spoolMaxBytes > 0) {
+            final File spoolDir = new File(getFilesDir(), SPOOL_DIR_NAME);
+            try {
+                mSpool = new MappedSpool(
+                        spoolDir,
+                        SPOOL_SEGMENT_SIZE,
+                        (int) Math.max(2, Math.min(Integer.MAX_VALUE, spoolMaxBytes / SPOOL_SEGMENT_SIZE)),
+                        getLogger());
+            } catch (IOException e) {
+                getLogger().e(LOG_TAG, "Failed to open spool: " + spoolDir, e);
+            }
+        }
     }
 
     @Override
     public void onDestroy() {
+        // The log source is closed first, so the queue thread is joined and does not publish to the closed
+        // publisher or spool.
+        super.onDestroy();
         if (mPublisher != null) {
             mPublisher.close();
         }
-        super.onDestroy();
+        if (mSpool != null) {
+            commitDrained();
+            mSpool.close();
+        }
     }
 
+    // Logs are marked by their dates.
     @Override
     protected void onLogEntry(LogEntry logEntry) {
+        publishLogEntry(logEntry, logEntry.date.getTime());
+    }
+
+    // Publishes the log with the mark, which is returned by getUnconfirmedMark until the log is confirmed.
+    // The tag is the key of the message, so logs of the tag keep order if messages are striped by keys.
+    // Messages are spooled while the broker is unreachable, and while there are spooled messages, so they are
+    // published in order. Spooled messages are published without keys.
+    protected final void publishLogEntry(LogEntry logEntry, long mark) {
         final byte[] data = logEntryToBytes(logEntry);
-        if (data != null) {
-            mPublisher.publish(data);
+        if (data == null) {
+            return;
+        }
+        final String tag = logEntry.getTag();
+        final int key = tag != null ? tag.hashCode() : 0;
+        if (mSpool == null) {
+            mPublisher.publish(data, mark, key);
+            return;
+        }
+        if (mSpool.isEmpty()) {
+            try {
+                mPublisher.publish(data, mark, key);
+                return;
+            } catch (RetryException e) {
+                mSpoolRetryDate = System.currentTimeMillis() + e.getMinTimeoutMilliseconds();
+                getLogger().w(LOG_TAG, "Broker is unreachable, messages are spooled.");
+            }
+        }
+        if (!mSpool.append(mark, data)) {
+            getLogger().e(LOG_TAG, "Failed to spool message: " + data.length + " bytes.");
+        }
+        drainSpool(SPOOL_DRAIN_COUNT);
+    }
+
+    // Mark of the oldest published log, which is not confirmed by the broker yet (or is not sent if confirms
+    // are disabled), or the default mark if all published logs are confirmed. Spooled logs are not counted.
+    protected final long getUnconfirmedMark(long defaultMark) {
+        return mPublisher != null ? mPublisher.getUnconfirmedMark(defaultMark) : defaultMark;
+    }
+
+    // Logs are batched by the publisher, so the batch is flushed when it lingers while there are no new logs.
+    // Spooled messages are drained while there are no new logs.
+    @Override
+    protected long onIdle() {
+        final long flushTimeout = mPublisher.flushLingered();
+        if (mSpool == null) {
+            return flushTimeout;
+        }
+        long drainTimeout = drainSpool(SPOOL_DRAIN_COUNT);
+        if (!mDrained.isEmpty() && (drainTimeout < 0 || drainTimeout > SPOOL_COMMIT_PERIOD)) {
+            drainTimeout = SPOOL_COMMIT_PERIOD;
+        }
+        return flushTimeout < 0 || (drainTimeout >= 0 && drainTimeout < flushTimeout) ? drainTimeout : flushTimeout;
+    }
+
+    // Returns milliseconds, after which draining is to be continued, or -1 if the spool is drained.
+    private long drainSpool(int count) {
+        commitDrained();
+        final long now = System.currentTimeMillis();
+        if (now < mSpoolRetryDate) {
+            return mSpoolRetryDate - now;
+        }
+        for (int i = 0; i < count; ++i) {
+            final byte[] data = mSpool.peek();
+            if (data == null) {
+                return -1;
+            }
+            final long mark = mSpool.peekMark();
+            try {
+                mPublisher.publish(data, mark);
+            } catch (RetryException e) {
+                mSpoolRetryDate = now + e.getMinTimeoutMilliseconds();
+                return e.getMinTimeoutMilliseconds();
+            }
+            mDrained.addLast(new long[] {mark, mSpool.skip()});
+        }
+        return 0;
+    }
+
+    // Removes drained messages from the spool, when they are confirmed (or are sent if confirms are disabled),
+    // so they are published again after restart if they are lost. Marks do not decrease, so messages before
+    // the oldest unconfirmed mark are confirmed.
+    private void commitDrained() {
+        final long unconfirmedMark = mPublisher.getUnconfirmedMark(Long.MAX_VALUE);
+        long position = -1;
+        while (!mDrained.isEmpty() && mDrained.peekFirst()[0] < unconfirmedMark) {
+            position = mDrained.pollFirst()[1];
+        }
+        if (position >= 0) {
+            mSpool.commit(position);
         }
     }
 
@@ -45,4 +174,12 @@ public abstract class LogcatToRabbitMqPublisher extends LogcatMonitor {
              ? new Publisher.Params(intent.getBundleExtra(EXTRA_RABBITMQ_PARAMS))
              : null;
     }
+
+    public static void setSpoolMaxBytes(Intent intent, long spoolMaxBytes) {
+        intent.putExtra(EXTRA_SPOOL_MAX_BYTES, spoolMaxBytes);
+    }
+
+    public static long getSpoolMaxBytes(Intent intent, long defaultSpoolMaxBytes) {
+        return intent.getLongExtra(EXTRA_SPOOL_MAX_BYTES, defaultSpoolMaxBytes);
+    }
 }
@@ -1,12 +1,23 @@
 package monik.services;
 
+import monik.common.ByteArrayBuilder;
 import monik.logs.LogEntry;
 import monik.logs.LogUtils;
 
 public class LogcatToRabbitMqTextPublisher extends LogcatToRabbitMqPublisher {
 
+    // The default text is written from UTF-8 bytes of logs, unless logEntryToText is overridden. Buffers of logs
+    // are written only if logs of several buffers are captured.
+    private final boolean mDefaultText = isDefaultLogEntryToText(getClass());
+    private final ByteArrayBuilder mTextBytes = new ByteArrayBuilder(1024);
+
     @Override
     protected byte[] logEntryToBytes(LogEntry logEntry) {
+        if (mDefaultText) {
+            mTextBytes.setLength(0);
+            LogUtils.writeText(logEntry, getLogcatBufferCount() > 1, mTextBytes);
+            return mTextBytes.toByteArray();
+        }
         final String text = logEntryToText(logEntry);
         return text != null ? text.getBytes() : null;
     }
@@ -18,4 +29,13 @@ public class LogcatToRabbitMqTextPublisher extends LogcatToRabbitMqPublisher {
     public static String defaultLogEntryToText(LogEntry logEntry) {
         return LogUtils.toText(logEntry);
     }
+
+    private static boolean isDefaultLogEntryToText(Class<?> publisherClass) {
+        try {
+            return publisherClass.getMethod("logEntryToText", LogEntry.class).getDeclaringClass()
+                    == LogcatToRabbitMqTextPublisher.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
 }
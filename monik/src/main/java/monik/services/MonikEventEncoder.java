@@ -0,0 +1,191 @@
+package monik.services;
+
+import com.google.protobuf.nano.MessageNano;
+
+import monik.common.ByteArrayBuilder;
+import monik.logs.LogEntry;
+import monik.logs.LogUtils;
+import MonikPackage.nano.Monik;
+
+// Writes Monik.Event with Monik.Log straight from UTF-8 tag and text of logs, so they are not decoded to strings
+// and encoded back. Fields are written as the generated messages write them: fields with default values are skipped.
+// Sample rates of sampled logs are appended to their tags as SAMPLE_RATE_TAG, as Monik.Log has no field for them,
+// so counts can be extrapolated by the server. Not thread safe.
+final class MonikEventEncoder {
+
+    // Appended to tags of sampled logs with their sample rates, e.g. "MyTag,sample=10".
+    public static final String SAMPLE_RATE_TAG = ",sample=";
+
+    // Field keys (field number and wire type) are taken from the generated messages.
+    private static final int LOG_LEVEL_KEY      = readKey(newLog(1, 0, 0, "", ""));
+    private static final int LOG_SEVERITY_KEY   = readKey(newLog(0, 1, 0, "", ""));
+    private static final int LOG_FORMAT_KEY     = readKey(newLog(0, 0, 1, "", ""));
+    private static final int LOG_BODY_KEY       = readKey(newLog(0, 0, 0, "-", ""));
+    private static final int LOG_TAGS_KEY       = readKey(newLog(0, 0, 0, "", "-"));
+    private static final int EVENT_CREATED_KEY  = readKey(newEvent(1, "", "", null));
+    private static final int EVENT_SOURCE_KEY   = readKey(newEvent(0, "-", "", null));
+    private static final int EVENT_INSTANCE_KEY = readKey(newEvent(0, "", "-", null));
+    private static final int EVENT_LG_KEY       = readKey(newEvent(0, "", "", new Monik.Log()));
+
+    private final ByteArrayBuilder mEvent = new ByteArrayBuilder(1024);
+
+    // Source and instance are changed rarely, so their fields are encoded once and are copied to every event.
+    private String mSource;
+    private String mInstance;
+    private byte[] mHeader;
+
+    // The tag of the last sample rate, as logs are sampled by a few rates.
+    private int mSampleRate;
+    private byte[] mSampleRateTag;
+
+    // The event is written straight to the reused buffer: the length of the log is computed before, so the log
+    // is not written apart. Only the result is allocated, as it is kept by the publisher. The sample rate is 1
+    // for logs, which are not sampled.
+    public byte[] encode(long created, String source, String instance, int level, int severity, int format,
+                         int sampleRate, LogEntry logEntry) {
+
+        if (mHeader == null || source != mSource || instance != mInstance) {
+            mSource = source;
+            mInstance = instance;
+            final ByteArrayBuilder header = new ByteArrayBuilder(64);
+            writeBytesField(header, EVENT_SOURCE_KEY, toBytes(source));
+            writeBytesField(header, EVENT_INSTANCE_KEY, toBytes(instance));
+            mHeader = header.toByteArray();
+        }
+
+        final byte[] body;
+        final int bodyOffset;
+        final int bodyLength;
+        if (logEntry.text == null && logEntry.bytes != null) {
+            body = logEntry.bytes;
+            bodyOffset = logEntry.textOffset;
+            bodyLength = logEntry.textLength;
+        } else {
+            body = toBytes(logEntry.text);
+            bodyOffset = 0;
+            bodyLength = body != null ? body.length : 0;
+        }
+        final byte[] tags = logEntry.tag == null && logEntry.logTag != null
+                ? logEntry.logTag.bytes
+                : toBytes(logEntry.tag);
+        final int tagsLength = tags != null ? tags.length : 0;
+        if (sampleRate > 1 && sampleRate != mSampleRate) {
+            mSampleRate = sampleRate;
+            mSampleRateTag = toBytes(SAMPLE_RATE_TAG + sampleRate);
+        }
+        final int sampleRateTagLength = sampleRate > 1 ? mSampleRateTag.length : 0;
+
+        final int logLength = getVarintFieldSize(LOG_LEVEL_KEY, level)
+                + getVarintFieldSize(LOG_SEVERITY_KEY, severity)
+                + getVarintFieldSize(LOG_FORMAT_KEY, format)
+                + getBytesFieldSize(LOG_BODY_KEY, bodyLength)
+                + getBytesFieldSize(LOG_TAGS_KEY, tagsLength + sampleRateTagLength);
+
+        final ByteArrayBuilder event = mEvent;
+        event.setLength(0);
+        writeVarintField(event, EVENT_CREATED_KEY, created);
+        event.append(mHeader);
+        writeVarint(event, EVENT_LG_KEY);
+        writeVarint(event, logLength);
+        writeVarintField(event, LOG_LEVEL_KEY, level);
+        writeVarintField(event, LOG_SEVERITY_KEY, severity);
+        writeVarintField(event, LOG_FORMAT_KEY, format);
+        writeBytesField(event, LOG_BODY_KEY, body, bodyOffset, bodyLength);
+        if (sampleRateTagLength != 0) {
+            writeVarint(event, LOG_TAGS_KEY);
+            writeVarint(event, tagsLength + sampleRateTagLength);
+            if (tagsLength != 0) {
+                event.append(tags, 0, tagsLength);
+            }
+            event.append(mSampleRateTag);
+        } else {
+            writeBytesField(event, LOG_TAGS_KEY, tags, 0, tagsLength);
+        }
+
+        return event.toByteArray();
+    }
+
+    private static int getVarintFieldSize(int key, long value) {
+        return value != 0 ? getVarintSize(key) + getVarintSize(value) : 0;
+    }
+
+    private static int getBytesFieldSize(int key, int length) {
+        return length != 0 ? getVarintSize(key) + getVarintSize(length) + length : 0;
+    }
+
+    private static int getVarintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            ++size;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static void writeVarintField(ByteArrayBuilder out, int key, long value) {
+        if (value != 0) {
+            writeVarint(out, key);
+            writeVarint(out, value);
+        }
+    }
+
+    private static void writeBytesField(ByteArrayBuilder out, int key, byte[] bytes) {
+        if (bytes != null) {
+            writeBytesField(out, key, bytes, 0, bytes.length);
+        }
+    }
+
+    private static void writeBytesField(ByteArrayBuilder out, int key, byte[] bytes, int offset, int length) {
+        if (length != 0) {
+            writeVarint(out, key);
+            writeVarint(out, length);
+            out.append(bytes, offset, length);
+        }
+    }
+
+    // Negative int32 values are sign extended, as protobuf requires.
+    private static void writeVarint(ByteArrayBuilder out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.append((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.append((int) value);
+    }
+
+    private static byte[] toBytes(String value) {
+        return value != null ? value.getBytes(LogUtils.UTF8) : null;
+    }
+
+    private static int readKey(MessageNano message) {
+        final byte[] bytes = MessageNano.toByteArray(message);
+        int key = 0;
+        for (int i = 0; i < bytes.length && i < 5; ++i) {
+            key |= (bytes[i] & 0x7F) << (7 * i);
+            if ((bytes[i] & 0x80) == 0) {
+                return key;
+            }
+        }
+        throw new IllegalStateException("Failed to read field key.");
+    }
+
+    private static Monik.Log newLog(int level, int severity, int format, String body, String tags) {
+        final Monik.Log log = new Monik.Log();
+        log.level = level;
+        log.severity = severity;
+        log.format = format;
+        log.body = body;
+        log.tags = tags;
+        return log;
+    }
+
+    private static Monik.Event newEvent(long created, String source, String instance, Monik.Log log) {
+        final Monik.Event event = new Monik.Event();
+        event.created = created;
+        event.source = source;
+        event.instance = instance;
+        if (log != null) {
+            event.setLg(log);
+        }
+        return event;
+    }
+}
@@ -3,35 +3,62 @@ package monik.services;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Bundle;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import monik.common.Checks;
+import monik.common.RetryException;
+import monik.logs.LogCheckpoint;
 import monik.logs.LogEntry;
+import monik.logs.LogRules;
+import monik.logs.LogSequencer;
 import monik.logs.LogSeverity;
+import monik.logs.LogTag;
 import monik.logs.LogUtils;
+import monik.logs.logcat.LogcatFilterSpec;
 import monik.rabbitmq.Publisher;
 import MonikPackage.nano.Monik;
 
 public class MonikService extends LogcatToRabbitMqPublisher {
 
-    private static final String EXTRA_MONIK_SOURCE   = "EXTRA_MONIK_SOURCE";
-    private static final String EXTRA_MONIK_INSTANCE = "EXTRA_MONIK_INSTANCE";
-    private static final String EXTRA_MIN_SEVERITY   = "EXTRA_MIN_SEVERITY";
+    private static final String EXTRA_MONIK_SOURCE     = "EXTRA_MONIK_SOURCE";
+    private static final String EXTRA_MONIK_INSTANCE   = "EXTRA_MONIK_INSTANCE";
+    private static final String EXTRA_MIN_SEVERITY     = "EXTRA_MIN_SEVERITY";
+    private static final String EXTRA_LOG_RULES        = "EXTRA_LOG_RULES";
+    private static final String EXTRA_SAMPLE_RATES     = "EXTRA_SAMPLE_RATES";
+    private static final String EXTRA_TAG_SAMPLE_RATES = "EXTRA_TAG_SAMPLE_RATES";
 
-    private static final long STORE_PUBLISH_DATE_PERIOD_MILLISECONDS = 10000;
+    // The publish date, which is stored by previous versions instead of the checkpoint.
     private static final String PREF_NAME = "MonikService";
     private static final String PREF_LAST_PUBLISH_DATE = "PREF_LAST_PUBLISH_DATE";
 
+    private static final String CHECKPOINT_FILE_NAME = "monik-checkpoint";
+    // The checkpoint follows confirmations of the broker while there are no new logs.
+    private static final long CHECKPOINT_IDLE_PERIOD_MILLISECONDS = 1000;
+
+    // Marks of published logs are their positions: timestamps in microseconds followed by sequences of logs
+    // of the timestamp, i.e. indexes of buffers and numbers of logs in the buffers, so the checkpoint can be
+    // restored from the oldest unconfirmed mark.
+    // LogSequencer.MAX_BUFFER_COUNT indexes fit the buffer bits.
+    private static final int MARK_BUFFER_BITS = 3;
+    private static final int MARK_NUMBER_BITS = 8;
+    private static final int MAX_MARK_NUMBER = (1 << MARK_NUMBER_BITS) - 1;
+
+    private static final byte[] FATAL_EXCEPTION_PREFIX = "FATAL EXCEPTION:".getBytes(LogUtils.UTF8);
+
     public static class Tags {
         public static final String SYSTEM       = "SYSTEM";
         public static final String APPLICATION  = "APPLICATION";
@@ -45,6 +72,17 @@ public class MonikService extends LogcatToRabbitMqPublisher {
         public int logcatLastLogsCount = -1;
         public String monikSource;
         public String monikInstance;
+        // JSON array of filter rules, see LogRules, or null.
+        public String logRules;
+        // Repeated logs within the window are collapsed, see LogDeduplicator. Zero disables deduplication.
+        public long dedupWindowMilliseconds;
+        // Limits of logs per minute by ordinals of severities, see LogRateLimiter, or null if there are no limits.
+        public int[] tagRateLimits;
+        public int[] pidRateLimits;
+        // Sample rates by ordinals of severities and by tags: one of N logs is published, see isSampled.
+        // Null if logs are not sampled.
+        public int[] sampleRates;
+        public Map<String, Integer> tagSampleRates;
 
         @Override
         public String toString() {
@@ -53,6 +91,12 @@ public class MonikService extends LogcatToRabbitMqPublisher {
             sb.append("; monikSource=" + monikSource );
             sb.append("; minSeverity=" + minSeverity);
             sb.append("; logcatLastLogsCount=" + logcatLastLogsCount);
+            sb.append("; logRules=" + logRules);
+            sb.append("; dedupWindowMilliseconds=" + dedupWindowMilliseconds);
+            sb.append("; tagRateLimits=" + Arrays.toString(tagRateLimits));
+            sb.append("; pidRateLimits=" + Arrays.toString(pidRateLimits));
+            sb.append("; sampleRates=" + Arrays.toString(sampleRates));
+            sb.append("; tagSampleRates=" + tagSampleRates);
             sb.append("rmq{");
             sb.append(rmqParams == null ? "null" : rmqParams.toString());
             sb.append("}");
@@ -62,145 +106,357 @@ public class MonikService extends LogcatToRabbitMqPublisher {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
-    private final Object mSync = new Object();
-    private SharedPreferences mPrefs;
-    private Timer mStorePublishDateScheduler;
-    private volatile String mMonikSource;
-    private volatile String mMonikInstance;
-    private volatile LogSeverity mMinSeverity;
-    private volatile long mLastPublishDate;
+    // Settings of the service, which are replaced as a whole by commands, so logs are handled
+    // by a consistent snapshot without locks.
+    private static final class Config {
+
+        final String monikSource;
+        final String monikInstance;
+        final LogSeverity minSeverity;
+        // Filter rules, or null if there are no rules.
+        final LogRules rules;
+        // Sample rates by ordinals of severities and by tags, or null if logs are not sampled.
+        final int[] sampleRates;
+        final Map<String, Integer> tagSampleRates;
+
+        Config(String monikSource,
+               String monikInstance,
+               LogSeverity minSeverity,
+               LogRules rules,
+               int[] sampleRates,
+               Map<String, Integer> tagSampleRates) {
+            this.monikSource = monikSource;
+            this.monikInstance = monikInstance;
+            this.minSeverity = minSeverity;
+            this.rules = rules;
+            this.sampleRates = sampleRates;
+            this.tagSampleRates = tagSampleRates;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final class TagMeta {
+
+        // The config, which the decisions are made by.
+        final Config config;
+        final Integer monikLevel;
+        // Whether logs of the tag are passed, unless they are fatal exceptions.
+        final boolean passed;
+        // Filter rules of the tag, or null if there are no rules.
+        final LogRules.TagRules rules;
+        // Sample rates of logs of the tag by ordinals of severities, or null if they are not sampled.
+        final int[] sampleRates;
+
+        TagMeta(Config config, Integer monikLevel, boolean passed, LogRules.TagRules rules, int[] sampleRates) {
+            this.config = config;
+            this.monikLevel = monikLevel;
+            this.passed = passed;
+            this.rules = rules;
+            this.sampleRates = sampleRates;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final AtomicReference<Config> mConfig = new AtomicReference<>(new Config(null, null, null, null, null, null));
+    private final MonikEventEncoder mEventEncoder = new MonikEventEncoder();
+    private LogCheckpoint mCheckpoint;
+
+    // Logs before the resume position are published before restart. Logs of the resume timestamp are skipped
+    // up to the skip count by their sequences, which sources assign before logs are filtered, as logcat passes
+    // logs of the same timestamp in the same order. The skip count is a sequence, so logs of buffers before
+    // the buffer of the position are skipped, as merged logs of the timestamp are ordered by buffers.
+    private volatile long mResumeTimestamp;
+    private int mResumeSkipCount;
+    private long mResumePid = LogCheckpoint.UNKNOWN_ID;
+    private long mResumeTid = LogCheckpoint.UNKNOWN_ID;
+
+    // Position of the last handled log, which is changed on the publishing thread only. It is read by onDestroy
+    // after the publishing thread is joined, so it needs no synchronization.
+    private long mLastTimestamp = -1;
+    private int mLastSequence;
+    private long mLastPid;
+    private long mLastTid;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
     @Override
     protected void onLogEntry(LogEntry logEntry) {
-        if (!isPassedByDate(logEntry)) {
+        final long timestamp = getTimestamp(logEntry);
+        if (!isPassedByDate(timestamp)) {
             return;
         }
 
-        if (!isPassedBySeverity(logEntry.severity)) {
+        // Summaries of other logs are not read again after restart, so they have no sequences: they are published
+        // with the mark after the last handled log and do not move the position.
+        final int sequence = logEntry.sequence;
+        if (sequence == 0) {
+            if (isPassedBySeverity(logEntry.severity, mConfig.get())) {
+                publishLogEntry(logEntry, mLastSequence > 0 ? toMark(mLastTimestamp, mLastSequence + 1) : toMark(timestamp, 1));
+            }
             return;
         }
+        if (isSkippedOnResume(logEntry, timestamp, sequence)
+                || !isPassedBySeverity(logEntry.severity, mConfig.get())) {
+            updatePosition(logEntry, timestamp, sequence);
+            return;
+        }
+
+        boolean retry = false;
+        try {
+            publishLogEntry(logEntry, toMark(timestamp, sequence));
+        } catch (RetryException e) {
+            // The log is handled again, so the position is not changed.
+            retry = true;
+            throw e;
+        } finally {
+            if (!retry) {
+                updatePosition(logEntry, timestamp, sequence);
+                storeCheckpoint();
+            }
+        }
+    }
 
-        super.onLogEntry(logEntry);
-        updatePushlishDate(logEntry);
+    @Override
+    protected long onIdle() {
+        final long timeout = super.onIdle();
+        storeCheckpoint();
+        if (getUnconfirmedMark(-1) < 0 || (timeout >= 0 && timeout < CHECKPOINT_IDLE_PERIOD_MILLISECONDS)) {
+            return timeout;
+        }
+        return CHECKPOINT_IDLE_PERIOD_MILLISECONDS;
+    }
+
+    // Logcat starts reading at the resume position, so logs, which are published before restart, are not read.
+    @Override
+    protected long getLogcatSinceDate() {
+        return mResumeTimestamp > 0 && !isResumeInFuture()
+                ? mResumeTimestamp / 1000
+                : LogcatFilterSpec.ANY_DATE;
+    }
+
+    @Override
+    protected boolean canPassLogHeader(LogEntry logEntry) {
+        final Config config = mConfig.get();
+        if (!isPassedByDate(getTimestamp(logEntry)) || !isPassedBySeverity(logEntry.severity, config)) {
+            return false;
+        }
+        // Logs of not passed tags are published only if they are fatal exceptions, which are logged as errors.
+        // Rules with text conditions are checked again by logEntryToBytes, when texts are assembled.
+        final TagMeta tagMeta = getTagMeta(logEntry, config);
+        // Logs are sampled by their headers, so texts of logs, which are not sampled, are not assembled.
+        return (tagMeta.passed || logEntry.severity.ordinal() >= LogSeverity.Error.ordinal())
+                && (tagMeta.rules == null || tagMeta.rules.canPass(logEntry, false))
+                && isSampled(logEntry, getSampleRate(tagMeta, logEntry));
     }
 
     @Override
     protected byte[] logEntryToBytes(LogEntry logEntry) {
 
         try {
-            String monikSource = null;
-            String monikInstance = null;
-            synchronized (mSync) {
-                monikSource = mMonikSource;
-                monikInstance = mMonikInstance;
+            final Config config = mConfig.get();
+            final TagMeta tagMeta = getTagMeta(logEntry, config);
+            if (tagMeta.rules != null && !tagMeta.rules.canPass(logEntry, true)) {
+                return null;
+            }
+            final int sampleRate = getSampleRate(tagMeta, logEntry);
+            if (!isSampled(logEntry, sampleRate)) {
+                return null;
             }
-
             int monikSeverity = severityToMonikSeverity(logEntry.severity);
-            Integer monikLevel = tagToMonikLevel(logEntry.tag);
+            Integer monikLevel = tagMeta.monikLevel;
             if (monikLevel == null) {
                 monikSeverity = Monik.VERBOSE;
-                LogSeverity severity = LogSeverity.Verbose;
-                if (logEntry.text != null && logEntry.text.startsWith("FATAL EXCEPTION:")) {
+                if (logEntry.textStartsWith(FATAL_EXCEPTION_PREFIX)) {
                     monikSeverity = Monik.FATAL;
-                    severity = LogSeverity.Fatal;
-                }
-                if (!isPassedBySeverity(severity)) {
+                    if (!isPassedBySeverity(LogSeverity.Fatal, config)) {
+                        return null;
+                    }
+                } else if (!tagMeta.passed) {
                     return null;
                 }
                 monikLevel = Monik.APPLICATION;
             }
 
-            final Monik.Log monikLog = new Monik.Log();
-            monikLog.level = monikLevel;
-            monikLog.severity = monikSeverity;
-            monikLog.format = Monik.PLAIN;
-            monikLog.body = logEntry.text;
-            monikLog.tags = logEntry.tag;
-
-            final Monik.Event monikEvent = new Monik.Event();
-            monikEvent.created = logEntry.date.getTime();
-            monikEvent.source = monikSource;
-            monikEvent.instance = monikInstance;
-            monikEvent.setLg(monikLog);
-
-            final byte[] bytes = new byte[monikEvent.getSerializedSize()];
-            monikEvent.writeTo(com.google.protobuf.nano.CodedOutputByteBufferNano.newInstance(bytes));
-
-            return bytes;
+            return mEventEncoder.encode(
+                    logEntry.date.getTime(),
+                    config.monikSource,
+                    config.monikInstance,
+                    monikLevel,
+                    monikSeverity,
+                    Monik.PLAIN,
+                    sampleRate,
+                    logEntry);
 
         } catch (Exception e) {
             throw new RuntimeException("Failed to serialize logEntry to monik event.", e);
         }
     }
 
-    private boolean isPassedBySeverity(LogSeverity severity) {
-        synchronized (mSync) {
-            return severity.ordinal() >= mMinSeverity.ordinal();
+    // Decisions for the tag are made once and cached in the interned tag, until the config is changed.
+    // So filter rules are compiled once per tag, and logs are checked by the rules of their tags only.
+    private static TagMeta getTagMeta(LogEntry logEntry, Config config) {
+        final LogTag logTag = logEntry.logTag;
+        if (logTag != null && logTag.getMeta() instanceof TagMeta) {
+            final TagMeta tagMeta = (TagMeta) logTag.getMeta();
+            if (tagMeta.config == config) {
+                return tagMeta;
+            }
         }
+        final String tag = logEntry.getTag();
+        final Integer monikLevel = tagToMonikLevel(tag);
+        final TagMeta tagMeta = new TagMeta(
+                config,
+                monikLevel,
+                monikLevel != null || LogSeverity.Verbose.ordinal() >= config.minSeverity.ordinal(),
+                config.rules != null ? config.rules.compile(tag) : null,
+                makeSampleRates(tag, config));
+        if (logTag != null) {
+            logTag.setMeta(tagMeta);
+        }
+        return tagMeta;
     }
 
-    private boolean isPassedByDate(LogEntry logEntry) {
-        final long logDate = logEntry.date.getTime();
-        synchronized (mSync) {
-            if (logDate >= mLastPublishDate) {
-                return true;
-            }
-            final long nowDate = System.currentTimeMillis();
-            if (mLastPublishDate >= nowDate) {
-                return true;
+    // Tag sample rates apply to logs below warnings, and to severities with lower rates, so warnings and errors
+    // of a sampled tag are not lost unless their severities are sampled.
+    private static int[] makeSampleRates(String tag, Config config) {
+        final Integer tagSampleRate = config.tagSampleRates != null ? config.tagSampleRates.get(tag) : null;
+        if (config.sampleRates == null && tagSampleRate == null) {
+            return null;
+        }
+        final int[] sampleRates = new int[LogSeverity.values().length];
+        for (int i = 0; i < sampleRates.length; ++i) {
+            sampleRates[i] = Math.max(1, config.sampleRates != null ? config.sampleRates[i] : 1);
+            if (tagSampleRate != null && i < LogSeverity.Warning.ordinal()) {
+                sampleRates[i] = Math.max(sampleRates[i], tagSampleRate);
             }
         }
-        return false;
+        return sampleRates;
+    }
+
+    // Returns 1 if logs are not sampled.
+    private static int getSampleRate(TagMeta tagMeta, LogEntry logEntry) {
+        return tagMeta.sampleRates != null ? tagMeta.sampleRates[logEntry.severity.ordinal()] : 1;
     }
 
-    private void updatePushlishDate(LogEntry logEntry) {
-        final long date = logEntry.date.getTime();
-        synchronized (mSync) {
-            mLastPublishDate = date;
+    // One of the sample rate logs is sampled by the hash of pid, tid and the second of the log, so lines
+    // of multi-line logs and logs of a thread in the second are sampled together, whatever their tags are.
+    // Logs sampled by a rate are sampled by all lower rates too, so tags with different rates are consistent.
+    private static boolean isSampled(LogEntry logEntry, int sampleRate) {
+        if (sampleRate <= 1) {
+            return true;
         }
+        long hash = logEntry.pid * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ logEntry.tid) * 0xC2B2AE3D27D4EB4FL;
+        hash = (hash ^ (logEntry.date.getTime() / 1000)) * 0x165667B19E3779F9L;
+        hash ^= hash >>> 29;
+        return (hash >>> 33) * sampleRate < (1L << 31);
     }
 
-    private void storePublishDate() {
-        long date = 0;
-        synchronized (mSync) {
-            date = mLastPublishDate;
+    private static boolean isPassedBySeverity(LogSeverity severity, Config config) {
+        return severity.ordinal() >= config.minSeverity.ordinal();
+    }
+
+    // Logs are passed since the resume timestamp, or all logs if the clock is set back after the checkpoint.
+    private boolean isPassedByDate(long timestamp) {
+        return timestamp >= mResumeTimestamp || isResumeInFuture();
+    }
+
+    private boolean isResumeInFuture() {
+        return mResumeTimestamp / 1000 >= System.currentTimeMillis();
+    }
+
+    private boolean isSkippedOnResume(LogEntry logEntry, long timestamp, int sequence) {
+        if (timestamp != mResumeTimestamp || sequence > mResumeSkipCount) {
+            return false;
+        }
+        if (sequence == mResumeSkipCount
+                && mResumePid != LogCheckpoint.UNKNOWN_ID
+                && (logEntry.pid != mResumePid || logEntry.tid != mResumeTid)) {
+            getLogger().w(Tags.APPLICATION, "Logs of the resume timestamp are changed since the checkpoint, some logs may be published twice or skipped.");
+        }
+        return true;
+    }
+
+    private void updatePosition(LogEntry logEntry, long timestamp, int sequence) {
+        mLastTimestamp = timestamp;
+        mLastSequence = sequence;
+        mLastPid = logEntry.pid;
+        mLastTid = logEntry.tid;
+    }
+
+    // Logs, which are not confirmed by the broker yet, are published again after restart. The checkpoint is not
+    // moved back by logs drained from the spool, as later logs are kept by the spool.
+    private void storeCheckpoint() {
+        if (mCheckpoint == null || mLastSequence == 0) {
+            return;
         }
-        mPrefs.edit().putLong(PREF_LAST_PUBLISH_DATE, date).apply();
+        final long unconfirmedMark = getUnconfirmedMark(-1);
+        long timestamp = mLastTimestamp;
+        int skipCount = mLastSequence;
+        long pid = mLastPid;
+        long tid = mLastTid;
+        if (unconfirmedMark >= 0) {
+            timestamp = unconfirmedMark >>> (MARK_BUFFER_BITS + MARK_NUMBER_BITS);
+            skipCount = LogSequencer.toSequence(
+                    (int) (unconfirmedMark >>> MARK_NUMBER_BITS) & ((1 << MARK_BUFFER_BITS) - 1),
+                    (int) (unconfirmedMark & MAX_MARK_NUMBER) - 1);
+            pid = LogCheckpoint.UNKNOWN_ID;
+            tid = LogCheckpoint.UNKNOWN_ID;
+        }
+        if (mCheckpoint.isValid()
+                && mCheckpoint.getTimestamp() / 1000 < System.currentTimeMillis()
+                && (timestamp < mCheckpoint.getTimestamp()
+                        || (timestamp == mCheckpoint.getTimestamp() && skipCount < mCheckpoint.getSkipCount()))) {
+            return;
+        }
+        mCheckpoint.write(timestamp, skipCount, pid, tid);
     }
 
-    private void loadPublishDate(long defaultVal) {
-        final long date = mPrefs.getLong(PREF_LAST_PUBLISH_DATE, defaultVal);
-        synchronized (mSync) {
-            mLastPublishDate = date;
+    private void loadCheckpoint() {
+        final File file = new File(getFilesDir(), CHECKPOINT_FILE_NAME);
+        try {
+            mCheckpoint = new LogCheckpoint(file);
+        } catch (IOException e) {
+            getLogger().e(Tags.APPLICATION, "Failed to open checkpoint: " + file, e);
         }
+        if (mCheckpoint != null && mCheckpoint.isValid()) {
+            mResumeTimestamp = mCheckpoint.getTimestamp();
+            mResumeSkipCount = mCheckpoint.getSkipCount();
+            mResumePid = mCheckpoint.getPid();
+            mResumeTid = mCheckpoint.getTid();
+            return;
+        }
+        final SharedPreferences prefs = getSharedPreferences(PREF_NAME, MODE_PRIVATE);
+        mResumeTimestamp = prefs.getLong(PREF_LAST_PUBLISH_DATE, 0) * 1000;
+    }
+
+    // Timestamp of the log in microseconds.
+    private static long getTimestamp(LogEntry logEntry) {
+        return logEntry.date.getTime() * 1000 + logEntry.micros;
+    }
+
+    private static long toMark(long timestamp, int sequence) {
+        return (timestamp << (MARK_BUFFER_BITS + MARK_NUMBER_BITS))
+                | ((long) LogSequencer.getBufferIndex(sequence) << MARK_NUMBER_BITS)
+                | Math.min(LogSequencer.getNumber(sequence), MAX_MARK_NUMBER);
     }
 
     @Override
     public void onDestroy() {
-        if (mStorePublishDateScheduler != null) {
-            mStorePublishDateScheduler.cancel();
-            mStorePublishDateScheduler = null;
-        }
-        storePublishDate();
+        // The log source and then the publisher are closed first, so no logs are handled after the checkpoint is
+        // stored, and logs confirmed on close are not published again.
         super.onDestroy();
+        if (mCheckpoint != null) {
+            storeCheckpoint();
+            mCheckpoint.force();
+        }
     }
 
     @Override
     protected void onBeforeStart(Intent intent) {
-
-        mPrefs = getSharedPreferences(PREF_NAME, MODE_PRIVATE);
-        loadPublishDate(0);
-
-        mStorePublishDateScheduler = new Timer();
-        mStorePublishDateScheduler.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                storePublishDate();
-            }
-        }, STORE_PUBLISH_DATE_PERIOD_MILLISECONDS, STORE_PUBLISH_DATE_PERIOD_MILLISECONDS);
-
+        loadCheckpoint();
         handleIntent(intent);
         super.onBeforeStart(intent);
     }
@@ -211,27 +467,54 @@ public class MonikService extends LogcatToRabbitMqPublisher {
         super.onCommand(intent);
     }
 
+    // The config is replaced as a whole, so logs are never handled by a half changed config.
     private void handleIntent(Intent intent) {
 
         final StringBuilder log = new StringBuilder();
 
-        synchronized (mSync) {
+        while (true) {
+            log.setLength(0);
+            final Config config = mConfig.get();
+            String monikSource = config.monikSource;
+            String monikInstance = config.monikInstance;
+            LogSeverity minSeverity = config.minSeverity;
+            LogRules rules = config.rules;
+            int[] sampleRates = config.sampleRates;
+            Map<String, Integer> tagSampleRates = config.tagSampleRates;
+
             if (intent.hasExtra(EXTRA_MONIK_SOURCE)) {
-                final String newVal = getMonikSource(intent);
-                log.append("Monik source: " + mMonikSource + " -> " + newVal + LogUtils.getLineSeparator());
-                mMonikSource = newVal;
+                monikSource = getMonikSource(intent);
+                log.append("Monik source: " + config.monikSource + " -> " + monikSource + LogUtils.getLineSeparator());
             }
 
             if (intent.hasExtra(EXTRA_MONIK_INSTANCE)) {
-                final String newVal = getMonikInstance(intent);
-                log.append("Monik instance: " + mMonikInstance + " -> " + newVal + LogUtils.getLineSeparator());
-                mMonikInstance = newVal;
+                monikInstance = getMonikInstance(intent);
+                log.append("Monik instance: " + config.monikInstance + " -> " + monikInstance + LogUtils.getLineSeparator());
             }
 
             if (intent.hasExtra(EXTRA_MIN_SEVERITY)) {
-                final LogSeverity newVal = getMinSeverity(intent);
-                log.append("Min severity: " + mMinSeverity + " -> " + newVal + LogUtils.getLineSeparator());
-                mMinSeverity = newVal;
+                minSeverity = getMinSeverity(intent);
+                log.append("Min severity: " + config.minSeverity + " -> " + minSeverity + LogUtils.getLineSeparator());
+            }
+
+            if (intent.hasExtra(EXTRA_LOG_RULES)) {
+                rules = getLogRules(intent);
+                log.append("Log rules: " + (rules != null ? rules.getRuleCount() : 0) + LogUtils.getLineSeparator());
+            }
+
+            if (intent.hasExtra(EXTRA_SAMPLE_RATES)) {
+                sampleRates = getSampleRates(intent);
+                log.append("Sample rates: " + Arrays.toString(config.sampleRates) + " -> " + Arrays.toString(sampleRates) + LogUtils.getLineSeparator());
+            }
+
+            if (intent.hasExtra(EXTRA_TAG_SAMPLE_RATES)) {
+                tagSampleRates = getTagSampleRates(intent);
+                log.append("Tag sample rates: " + config.tagSampleRates + " -> " + tagSampleRates + LogUtils.getLineSeparator());
+            }
+
+            if (log.length() == 0
+                    || mConfig.compareAndSet(config, new Config(monikSource, monikInstance, minSeverity, rules, sampleRates, tagSampleRates))) {
+                break;
             }
         }
 
@@ -246,9 +529,25 @@ public class MonikService extends LogcatToRabbitMqPublisher {
         LogcatToRabbitMqTextPublisher.setRabbitMqParams(intent, startParams.rmqParams);
         LogcatMonitor.setLogcatLastLogsCount(intent, startParams.logcatLastLogsCount);
         LogcatMonitor.setLogcatFilter(intent, severityToLogcatFilter(startParams.minSeverity));
+        LogcatMonitor.setDedupWindowMilliseconds(intent, startParams.dedupWindowMilliseconds);
+        if (startParams.tagRateLimits != null) {
+            LogcatMonitor.setTagRateLimits(intent, startParams.tagRateLimits);
+        }
+        if (startParams.pidRateLimits != null) {
+            LogcatMonitor.setPidRateLimits(intent, startParams.pidRateLimits);
+        }
         setMonikSource(intent, startParams.monikSource);
         setMonikInstance(intent, startParams.monikInstance);
         setMinSeverity(intent, startParams.minSeverity);
+        if (startParams.logRules != null) {
+            setLogRules(intent, startParams.logRules);
+        }
+        if (startParams.sampleRates != null) {
+            setSampleRates(intent, startParams.sampleRates);
+        }
+        if (startParams.tagSampleRates != null) {
+            setTagSampleRates(intent, startParams.tagSampleRates);
+        }
         context.startService(intent);
     }
 
@@ -302,6 +601,32 @@ public class MonikService extends LogcatToRabbitMqPublisher {
             }
             startParams.monikInstance = meta.optString("instance", null);
             startParams.monikSource = meta.optString("source", null);
+            startParams.dedupWindowMilliseconds = monik.optLong("dedupWindowMillisecs", startParams.dedupWindowMilliseconds);
+            // Rate limits are logs per minute by severity names, e.g. "rateLimits": {"tag": {"debug": 60}}.
+            final JSONObject rateLimits = monik.optJSONObject("rateLimits");
+            if (rateLimits != null) {
+                startParams.tagRateLimits = readSeverityRates(rateLimits.optJSONObject("tag"));
+                startParams.pidRateLimits = readSeverityRates(rateLimits.optJSONObject("pid"));
+            }
+            // Sample rates by severity names and by tags, e.g. "sampling": {"severity": {"debug": 10}, "tags": {"Net": 100}}.
+            final JSONObject sampling = monik.optJSONObject("sampling");
+            if (sampling != null) {
+                startParams.sampleRates = readSeverityRates(sampling.optJSONObject("severity"));
+                final JSONObject tags = sampling.optJSONObject("tags");
+                if (tags != null) {
+                    startParams.tagSampleRates = new HashMap<>();
+                    for (final Iterator<String> it = tags.keys(); it.hasNext(); ) {
+                        final String tag = it.next();
+                        startParams.tagSampleRates.put(tag, tags.optInt(tag, 1));
+                    }
+                }
+            }
+            final JSONArray rules = jsonMonik.optJSONArray("rules");
+            if (rules != null) {
+                startParams.logRules = rules.toString();
+                // Rules are checked here, so bad rules fail the start rather than the service.
+                LogRules.parse(startParams.logRules);
+            }
 
             for (final LogSeverity s : LogSeverity.values()) {
                 if (s.name().toLowerCase().equals(severity)) {
@@ -323,6 +648,19 @@ public class MonikService extends LogcatToRabbitMqPublisher {
         }
     }
 
+    // Reads rate limits or sample rates by severity names. Returns null if there are no rates. Severities without
+    // rates are not limited or sampled.
+    private static int[] readSeverityRates(JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+        final int[] limits = new int[LogSeverity.values().length];
+        for (final LogSeverity s : LogSeverity.values()) {
+            limits[s.ordinal()] = json.optInt(s.name().toLowerCase(), 0);
+        }
+        return limits;
+    }
+
     public static void stop(Context context) {
         context.stopService(new Intent(context, MonikService.class));
     }
@@ -357,6 +695,54 @@ public class MonikService extends LogcatToRabbitMqPublisher {
         return Checks.checkArgNotNull(severity, EXTRA_MIN_SEVERITY);
     }
 
+    public static void setLogRules(Intent intent, String logRules) {
+        Checks.checkArgNotNull(logRules, "logRules");
+        intent.putExtra(EXTRA_LOG_RULES, logRules);
+    }
+
+    // Returns null if there are no rules.
+    public static LogRules getLogRules(Intent intent) {
+        final String logRules = Checks.checkArgNotNull(intent.getStringExtra(EXTRA_LOG_RULES), EXTRA_LOG_RULES);
+        try {
+            final LogRules rules = LogRules.parse(logRules);
+            return rules.getRuleCount() > 0 ? rules : null;
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Bad log rules: " + logRules, e);
+        }
+    }
+
+    // Rates are by ordinals of severities.
+    public static void setSampleRates(Intent intent, int[] sampleRates) {
+        Checks.checkArgNotNull(sampleRates, "sampleRates");
+        intent.putExtra(EXTRA_SAMPLE_RATES, sampleRates);
+    }
+
+    public static int[] getSampleRates(Intent intent) {
+        final int[] sampleRates = Checks.checkArgNotNull(intent.getIntArrayExtra(EXTRA_SAMPLE_RATES), EXTRA_SAMPLE_RATES);
+        if (sampleRates.length != LogSeverity.values().length) {
+            throw new IllegalArgumentException("Bad count of sample rates: " + sampleRates.length);
+        }
+        return sampleRates;
+    }
+
+    public static void setTagSampleRates(Intent intent, Map<String, Integer> tagSampleRates) {
+        Checks.checkArgNotNull(tagSampleRates, "tagSampleRates");
+        final Bundle bundle = new Bundle();
+        for (final Map.Entry<String, Integer> entry : tagSampleRates.entrySet()) {
+            bundle.putInt(entry.getKey(), entry.getValue());
+        }
+        intent.putExtra(EXTRA_TAG_SAMPLE_RATES, bundle);
+    }
+
+    public static Map<String, Integer> getTagSampleRates(Intent intent) {
+        final Bundle bundle = Checks.checkArgNotNull(intent.getBundleExtra(EXTRA_TAG_SAMPLE_RATES), EXTRA_TAG_SAMPLE_RATES);
+        final Map<String, Integer> tagSampleRates = new HashMap<>();
+        for (final String tag : bundle.keySet()) {
+            tagSampleRates.put(tag, bundle.getInt(tag));
+        }
+        return tagSampleRates;
+    }
+
     private static String severityToLogcatFilter(LogSeverity severity) {
         Checks.checkArgNotNull(severity, "severity");
         return "*:" + severity.name().substring(0, 1);
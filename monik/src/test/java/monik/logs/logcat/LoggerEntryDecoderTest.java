@@ -0,0 +1,125 @@
+package monik.logs.logcat;
+
+import monik.logs.LogEntry;
+import monik.logs.LogFilter;
+import monik.logs.LogSequencer;
+import monik.logs.LogSeverity;
+import monik.logs.Utf8Ring;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+// logger_entries.bin is a dump of text buffers in the 'logcat -B' format with records of every header layout:
+// v1 (no header size), v2 (euid), v3 (lid) and v4 (lid and uid).
+public class LoggerEntryDecoderTest {
+
+    private static final String DUMP = "logger_entries.bin";
+
+    private final Utf8Ring mRing = new Utf8Ring(64 * 1024);
+
+    @Test
+    public void decodesAllHeaderVersions() throws IOException {
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(openDump(), 0);
+
+        assertLog(decoder.read(mRing, null), 1500000000123L, 1234, 1235, LogSeverity.Info, "ActivityManager", "Start proc");
+        assertLog(decoder.read(mRing, null), 1500000001005L, 200, 201, LogSeverity.Error, "Net", "Failed");
+        assertLog(decoder.read(mRing, null), 1500000001005L, 300, 301, LogSeverity.Debug, "App", "multi\nline");
+        assertLog(decoder.read(mRing, null), 1500000002999L, 300, 302, LogSeverity.Warning, "App", "héllo");
+        assertLog(decoder.read(mRing, null), 1500000003000L, 400, 400, LogSeverity.Fatal, "Crash", "boom");
+        assertNull(decoder.read(mRing, null));
+    }
+
+    @Test
+    public void numbersLogsOfTheSameTimestamp() throws IOException {
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(openDump(), 2);
+
+        assertEquals(LogSequencer.toSequence(2, 1), decoder.read(mRing, null).sequence);
+        assertEquals(LogSequencer.toSequence(2, 1), decoder.read(mRing, null).sequence);
+        assertEquals(LogSequencer.toSequence(2, 2), decoder.read(mRing, null).sequence);
+        assertEquals(LogSequencer.toSequence(2, 1), decoder.read(mRing, null).sequence);
+    }
+
+    @Test
+    public void internsTags() throws IOException {
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(openDump(), 0);
+
+        decoder.read(mRing, null);
+        decoder.read(mRing, null);
+        final LogEntry first = decoder.read(mRing, null);
+        final LogEntry second = decoder.read(mRing, null);
+        assertSame(first.logTag, second.logTag);
+    }
+
+    @Test
+    public void skipsLogsNotPassedByHeaderFilter() throws IOException {
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(openDump(), 0);
+        final LogFilter headerFilter = new LogFilter() {
+            @Override
+            public boolean canPass(LogEntry logEntry) {
+                return logEntry.severity.ordinal() >= LogSeverity.Warning.ordinal();
+            }
+        };
+
+        assertLog(decoder.read(mRing, headerFilter), 1500000001005L, 200, 201, LogSeverity.Error, "Net", "Failed");
+        assertLog(decoder.read(mRing, headerFilter), 1500000002999L, 300, 302, LogSeverity.Warning, "App", "héllo");
+        assertLog(decoder.read(mRing, headerFilter), 1500000003000L, 400, 400, LogSeverity.Fatal, "Crash", "boom");
+        assertNull(decoder.read(mRing, headerFilter));
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnTruncatedRecord() throws IOException {
+        final byte[] dump = readDump();
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(new ByteArrayInputStream(Arrays.copyOf(dump, 30)), 0);
+        decoder.read(mRing, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnBadHeaderSize() throws IOException {
+        final byte[] dump = readDump();
+        dump[2] = 8;
+        final LoggerEntryDecoder decoder = new LoggerEntryDecoder(new ByteArrayInputStream(dump), 0);
+        decoder.read(mRing, null);
+    }
+
+    private static void assertLog(LogEntry logEntry,
+                                  long date,
+                                  long pid,
+                                  long tid,
+                                  LogSeverity severity,
+                                  String tag,
+                                  String text) {
+        assertEquals(date, logEntry.date.getTime());
+        assertEquals(pid, logEntry.pid);
+        assertEquals(tid, logEntry.tid);
+        assertEquals(severity, logEntry.severity);
+        assertEquals(tag, logEntry.getTag());
+        assertEquals(text, logEntry.getText());
+    }
+
+    private InputStream openDump() {
+        return getClass().getResourceAsStream(DUMP);
+    }
+
+    private byte[] readDump() throws IOException {
+        final InputStream stream = openDump();
+        try {
+            final byte[] buffer = new byte[4096];
+            int length = 0;
+            for (int read; (read = stream.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += read;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            stream.close();
+        }
+    }
+}